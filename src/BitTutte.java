@@ -1,25 +1,39 @@
+import graph.EdgeCursor;
 import graph.Graph;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 import polynomial.FactorPoly;
+import polynomial.PackedPoly;
 import polynomial.X;
 import polynomial.Y;
 import selection.EdgeSelection;
 import selection.HeuristicCollection;
 import util.Cache;
+import util.CacheTier;
+import util.CostAwarePolicy;
 import util.Debug;
+import util.GraphTable;
+import util.MappedCacheTier;
+import util.PersistentCacheTier;
 import util.Pair;
 import util.Triple;
 
@@ -37,15 +51,17 @@ public class BitTutte {
 	boolean status_flag;
 	boolean write_tree;
 
+	// The counters below are shared between all worker threads, hence
+	// LongAdder / AtomicInteger rather than plain fields.
 	int resize_stats = 0;
-	long num_steps = 0;
-	long num_bicomps = 0;
-	long num_cycles = 0;
-	long num_disbicomps = 0;
-	long num_trees = 0;
+	LongAdder num_steps = new LongAdder();
+	LongAdder num_bicomps = new LongAdder();
+	LongAdder num_cycles = new LongAdder();
+	LongAdder num_disbicomps = new LongAdder();
+	LongAdder num_trees = new LongAdder();
 	long num_completed = 0;
 	long old_num_steps = 0;
-	int tree_id = 2;
+	AtomicInteger tree_id = new AtomicInteger(2);
 
 	boolean reduce_multicycles = true;
 	boolean reduce_multiedges = true;
@@ -53,31 +69,142 @@ public class BitTutte {
 	int split_threshold = 0;
 	private int smallGraphThreshold = 5;
 	Cache cache;
+	/**
+	 * Precomputed polynomials of small biconnected graphs, or null
+	 */
+	GraphTable table;
+	LongAdder num_table_hits = new LongAdder();
+	boolean show_progress = true;
+
+	/**
+	 * Number of worker threads used for the delete / contract recursion. A value of 1 disables the fork/join engine entirely.
+	 */
+	int parallelism = Runtime.getRuntime().availableProcessors();
+	/**
+	 * Graphs with fewer edges than this are evaluated sequentially by the worker that reached them, since forking a task costs more
+	 * than evaluating such a small graph.
+	 */
+	int parallel_threshold = 20;
+	private ForkJoinPool pool;
+	/**
+	 * Evaluate both branches of a delete / contract on the graph itself, undoing the delete before contracting, rather than on a copy.
+	 * Branches which may be forked still get a copy.
+	 */
+	boolean use_undo_log = true;
+
+	/**
+	 * Compute the polynomial modulo enough primes to recover it by the Chinese remainder theorem, rather than with BigIntegers
+	 */
+	boolean modular = false;
+	/**
+	 * The prime every polynomial is reduced by during one pass of a modular computation, or zero
+	 */
+	long modulus = 0;
+	/**
+	 * The passes of the last modular computation, or null
+	 */
+	List<BitTutte> passes;
 
 	EdgeSelection edgeSelection;
 
 	long totalWork;
-	long workDone;
+	LongAdder workDone = new LongAdder();
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 		BitTutte t;
-		if (args.length == 1) {
-			t = new BitTutte(args[0]);
-			System.err.println(t.cache.statistics());
-			System.err.println("Steps: " + t.num_steps);
+		int threads = Runtime.getRuntime().availableProcessors();
+		long spill = 0;
+		String store = null;
+		String table = null;
+		boolean undo = true;
+		boolean modular = false;
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-spill")) {
+				spill = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-store")) {
+				store = args[++i];
+			} else if (args[i].equals("-table")) {
+				table = args[++i];
+			} else if (args[i].equals("-copy")) {
+				undo = false;
+			} else if (args[i].equals("-modular")) {
+				modular = true;
+			} else {
+				throw new RuntimeException("Unknown option " + args[i]);
+			}
+		}
+		if (i < args.length) {
+			t = new BitTutte();
+			t.parallelism = threads;
+			t.use_undo_log = undo;
+			t.modular = modular;
+			if (table != null) {
+				t.table = new GraphTable(new File(table));
+			}
+			CacheTier tier = null;
+			if (store != null && spill > 0) {
+				throw new RuntimeException("-store and -spill cannot be used together");
+			} else if (modular && (store != null || spill > 0)) {
+				// each prime needs a cache of its own
+				throw new RuntimeException("-modular cannot be used with -store or -spill");
+			} else if (store != null) {
+				tier = new PersistentCacheTier(new File(store));
+			} else if (spill > 0) {
+				tier = new MappedCacheTier(spill);
+			}
+			if (tier != null) {
+				t.cache = new Cache(Runtime.getRuntime().maxMemory() / 2, new CostAwarePolicy(CostAwarePolicy.TIME), 64, tier);
+			}
+			final Cache cache = t.cache;
+			// keep what has been computed if we are killed
+			Thread flush = new Thread() {
+				public void run() {
+					cache.close();
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(flush);
+			try {
+				t.run(args[i]);
+			} finally {
+				t.cache.close();
+				Runtime.getRuntime().removeShutdownHook(flush);
+			}
+			if (t.passes != null) {
+				for (BitTutte pass : t.passes) {
+					System.err.println("Modulo " + pass.modulus + ":\n" + pass.cache.statistics());
+				}
+			} else {
+				System.err.println(t.cache.statistics());
+			}
+			System.err.println("Steps: " + t.num_steps.sum());
+			if (t.table != null) {
+				System.err.println("Table Hits: " + t.num_table_hits.sum());
+			}
 		} else {
-			for (int i = 0; i < 100; i++) {
-				t = new BitTutte(null);
+			for (int j = 0; j < 100; j++) {
+				t = new BitTutte();
+				t.parallelism = threads;
+				t.run(null);
 			}
 		}
 	}
 
-	public BitTutte(String s) {
-		global_timer = new MyTimer();
-		num_steps = 0;
-		num_cycles = 0;
+	public BitTutte() {
 		cache = new Cache();
 		edgeSelection = new HeuristicCollection(HeuristicCollection.MINIMISE_SDEGREE);
+	}
+
+	/**
+	 * Compute and print the Tutte polynomial of a graph
+	 *
+	 * @param s
+	 *            The file holding the edge list, or null for a random graph
+	 */
+	public void run(String s) {
+		global_timer = new MyTimer();
 
 		// Make a graph
 		int minVertex = 3;
@@ -141,10 +268,8 @@ public class BitTutte {
 			}
 		}
 
-		totalWork = pow(2, g.numEdges());
-		workDone = 0;
 		// System.err.println(g.numEdges());
-		FactorPoly tutte = tutte(g, 1);
+		FactorPoly tutte = compute(g);
 		System.out.println();
 		System.out.println(tutte.toString());
 		// BigInteger correct = new BigInteger("2").pow(numEdges);
@@ -156,6 +281,126 @@ public class BitTutte {
 
 	}
 	
+	/**
+	 * Compute the Tutte polynomial of a graph, which is modified in the process
+	 * 
+	 * @param g
+	 *            The graph
+	 * @return Its polynomial
+	 */
+	FactorPoly compute(Graph g) {
+		totalWork = pow(2, g.numEdges());
+		workDone.reset();
+		if (modular) {
+			return computeModular(g);
+		}
+		if (parallelism > 1) {
+			pool = new ForkJoinPool(parallelism);
+			try {
+				return pool.invoke(new TutteTask(g, 1));
+			} finally {
+				pool.shutdown();
+				pool = null;
+			}
+		}
+		return tutte(g, 1);
+	}
+
+	/**
+	 * Compute the polynomial once for each of several primes, all at the same time if there are several threads, and put the results
+	 * together by the Chinese remainder theorem. The coefficients are non-negative and T(2,2) = 2^|E|, so no coefficient is more than
+	 * 2^|E|, and enough primes are used for their product to be larger than that.
+	 * 
+	 * @param g
+	 *            The graph, which is modified in the process
+	 * @return Its polynomial
+	 */
+	private FactorPoly computeModular(Graph g) {
+		List<Long> primes = new ArrayList<Long>();
+		BigInteger product = BigInteger.ONE;
+		long p = 1L << 31;
+		while (product.bitLength() <= g.numEdges() + 1) {
+			p = previousPrime(p);
+			primes.add(p);
+			product = product.multiply(BigInteger.valueOf(p));
+		}
+
+		passes = new ArrayList<BitTutte>();
+		for (long prime : primes) {
+			passes.add(pass(prime, primes.size()));
+		}
+		FactorPoly[] residues = new FactorPoly[primes.size()];
+		if (parallelism > 1) {
+			pool = new ForkJoinPool(parallelism);
+			try {
+				List<ForkJoinTask<FactorPoly>> tasks = new ArrayList<ForkJoinTask<FactorPoly>>();
+				for (BitTutte pass : passes) {
+					pass.pool = pool;
+					tasks.add(pool.submit(pass.new TutteTask(new Graph(g), 1)));
+				}
+				for (int i = 0; i < residues.length; i++) {
+					residues[i] = tasks.get(i).join();
+				}
+			} finally {
+				pool.shutdown();
+				pool = null;
+			}
+		} else {
+			for (int i = 0; i < residues.length; i++) {
+				residues[i] = passes.get(i).tutte(new Graph(g), 1);
+			}
+		}
+		return FactorPoly.reconstruct(residues);
+	}
+
+	/**
+	 * Make a computation modulo a prime, with the same settings as this one and adding to the same counters. It has a cache of its own,
+	 * since polynomials modulo different primes cannot be shared.
+	 * 
+	 * @param prime
+	 *            The modulus
+	 * @param n
+	 *            The number of passes sharing the memory for caches
+	 */
+	private BitTutte pass(long prime, int n) {
+		BitTutte t = new BitTutte();
+		t.modulus = prime;
+		t.cache = new Cache(Runtime.getRuntime().maxMemory() / 2 / n, new CostAwarePolicy(CostAwarePolicy.TIME), 64);
+		t.table = table;
+		t.edgeSelection = edgeSelection;
+		t.reduce_multicycles = reduce_multicycles;
+		t.reduce_multiedges = reduce_multiedges;
+		t.parallelism = parallelism;
+		t.parallel_threshold = parallel_threshold;
+		t.use_undo_log = use_undo_log;
+		t.show_progress = show_progress;
+		t.num_steps = num_steps;
+		t.num_bicomps = num_bicomps;
+		t.num_cycles = num_cycles;
+		t.num_disbicomps = num_disbicomps;
+		t.num_trees = num_trees;
+		t.num_table_hits = num_table_hits;
+		t.tree_id = tree_id;
+		t.totalWork = totalWork * n;
+		t.workDone = workDone;
+		return t;
+	}
+
+	/**
+	 * @return The largest prime below n
+	 */
+	private static long previousPrime(long n) {
+		for (long c = n - 1;; c--) {
+			boolean prime = c > 1;
+			for (long d = 2; d * d <= c && prime; d++) {
+				prime = c % d != 0;
+			}
+			if (prime) {
+				return c;
+			}
+		}
+	}
+
 	private long pow(long a, long b){
 		if(b <0) {
 			 throw new RuntimeException("b < 0");
@@ -243,53 +488,150 @@ public class BitTutte {
 		return g;
 	}
 
+	/**
+	 * A subproblem of the delete / contract recursion which can be handed to another worker. The task owns its graph outright, since
+	 * tutte() modifies the graph it is given.
+	 */
+	private class TutteTask extends RecursiveTask<FactorPoly> {
+		private static final long serialVersionUID = 1L;
+		private final Graph graph;
+		private final int mid;
+
+		public TutteTask(Graph graph, int mid) {
+			this.graph = graph;
+			this.mid = mid;
+		}
+
+		@Override
+		protected FactorPoly compute() {
+			return tutte(graph, mid);
+		}
+	}
+
+	/**
+	 * Determine whether a subproblem is worth handing to another worker
+	 * 
+	 * @param graph
+	 *            The subproblem
+	 * @return True if it should be forked
+	 */
+	private boolean forkable(Graph graph) {
+		return pool != null && graph.numEdges() >= parallel_threshold && ForkJoinTask.inForkJoinPool();
+	}
+
 	private FactorPoly tutte(Graph graph, int mid) {
-		num_steps++;
+		num_steps.increment();
+		// nothing above this call needs the vertex numbers until it has
+		// undone back to its mark, which brings them back, so the vertices
+		// contracted away can be dropped from the domain
+		graph.compact();
 		debug("Original Graph:\n");
 		debug(graph);
 		// === 1. APPLY SIMPLIFICATIONS ===
 
 		int numY = reduce_loops(graph);
-		FactorPoly RF = new FactorPoly(new Y(numY));
 
 		{
 			if(numY > 0){
 				System.out.println("Reduced loops");
 			}
 			int numEdges = graph.numEdges();
-			workDone += numY;
+			workDone.add(numY);
 			for (int i = numEdges + numY - 1; i >= numEdges; i--) {
 //				System.out.println("Reduced loops counting");
-				workDone += pow(2, i)-1;
+				workDone.add(pow(2, i)-1);
+			}
+		}
+		if (show_progress) {
+			System.err.printf("\r%.2f%%", 100.0 * workDone.sum() / (double) totalWork);
+		}
+		FactorPoly poly;
+		if (table != null && graph.numVertices() <= table.maxVertices() && graph.numEdges() <= table.maxEdges()
+				&& graph.isBiconnected()) {
+			PackedPoly p = table.get(graph.key());
+			if (p != null) {
+				num_table_hits.increment();
+				workDone.add(pow(2, graph.numEdges()) - 1);
+				return loops(p.unpack().reduce(modulus), numY);
 			}
 		}
-		// System.out.println("Removing all loops to get " + RF.toString());
-		System.err.printf("\r%.2f%%", 100.0 * workDone / (double) totalWork);
 		if (graph.numVertices() >= smallGraphThreshold && !graph.isMultitree()) {
-			FactorPoly r = cache.get(graph);
-			if (r != null) {
-				workDone += pow(2, graph.numEdges()) -1;
+			Evaluation evaluation = new Evaluation(mid);
+			poly = cache.computeIfAbsent(graph, evaluation);
+			if (!evaluation.evaluated) {
+				workDone.add(pow(2, graph.numEdges()) -1);
 				debug("Cache Hit!!");
-				return r.timesnew(RF);
+				return loops(poly.reduce(modulus), numY);
 			}
+		} else {
+			poly = evaluate(graph, mid);
+		}
+
+		// if(CACHELOOK != null && !CACHELOOK.toString().equals(poly.toString())){
+		// System.out.println(graph);
+		// System.out.println("Cache: " + CACHELOOK.toString());
+		// System.out.println("Computed: " + poly.toString());
+		// System.out.println(poly.toString().equals((new FactorPoly(poly)).toString()));
+		// throw new RuntimeException("Cached value was wrong!!!");
+		// }
+		if (show_progress) {
+			long done = workDone.sum();
+			System.err.printf("\r%.2f%%  %d %d", 100.0 * done / (double) totalWork, done, totalWork);
+		}
+		return loops(poly, numY);
+	}
+
+	/**
+	 * Multiply in the factor of y for each loop removed from a graph. The table, the cache and evaluate all hand out polynomials owned
+	 * by the caller, so this is done in place, and is just a shift of the y powers.
+	 */
+	private static FactorPoly loops(FactorPoly poly, int numY) {
+		if (numY > 0) {
+			poly.times(new Y(numY));
+		}
+		return poly;
+	}
+
+	/**
+	 * Evaluates a graph through the cache, recording whether the cache actually needed it evaluated or found an isomorphic graph
+	 * instead.
+	 */
+	private class Evaluation implements Function<Graph, FactorPoly> {
+		private final int mid;
+		boolean evaluated;
+
+		public Evaluation(int mid) {
+			this.mid = mid;
+		}
+
+		@Override
+		public FactorPoly apply(Graph graph) {
+			evaluated = true;
+			return evaluate(graph, mid);
 		}
-		Graph cacheEntry = new Graph(graph);
+	}
+
+	/**
+	 * Compute the polynomial of a loop free graph, either directly for cycles and trees or by splitting it into smaller graphs. The graph
+	 * is modified in the process.
+	 */
+	private FactorPoly evaluate(Graph graph, int mid) {
 		FactorPoly poly;
 
 		// === 3. CHECK FOR ARTICULATIONS, DISCONNECTS AND/OR TREES ===
 
 		if (reduce_multicycles && graph.isMulticycle()) {
 			debug("--- MultiCycle ---");
-			num_cycles++;
+			num_cycles.increment();
 
 			int numEdgesBefore = graph.numEdges();
 
-			poly = reduce_cycle(new FactorPoly(new X(1)), graph);
+			poly = reduce_cycle(graph);
 
 			int numEdgesAfter = graph.numEdges();
-			workDone += numEdgesBefore - numEdgesAfter; 
+			workDone.add(numEdgesBefore - numEdgesAfter);
 			for (int i = numEdgesBefore - 1; i >= numEdgesAfter; i--) {
-				workDone += pow(2, i)-1;
+				workDone.add(pow(2, i)-1);
 			}
 
 			debug(poly);
@@ -301,8 +643,7 @@ public class BitTutte {
 			debug("--- Biconnected --- " + biconnects.size());
 
 			// figure out how many tree ids I need
-			int tid = tree_id;
-			tree_id += biconnects.size();
+			int tid = tree_id.getAndAdd(biconnects.size());
 			// if(biconnects.size() > 0 && write_tree) { write_tree_nonleaf(mid,tid,tree_id-tid,graph,cout); }
 			// else if(write_tree) { write_tree_leaf(mid,graph,cout); }
 			// System.out.println("Have ");
@@ -314,106 +655,129 @@ public class BitTutte {
 			// System.out.println("get ");
 			// System.out.println(graph);
 			if (graph.isMultitree()) {
-				num_trees++;
+				num_trees.increment();
 			}
 			if (biconnects.size() > 1) {
-				num_disbicomps++;
+				num_disbicomps.increment();
 			}
 
 			int numEdgesBefore = graph.numEdges();
 
-			poly = reduce_tree(new FactorPoly(new X(1)), graph);
+			poly = reduce_tree(graph);
 			debug(poly);
 
 			int numEdgesAfter = graph.numEdges();
-			workDone += numEdgesBefore - numEdgesAfter; 
+			workDone.add(numEdgesBefore - numEdgesAfter);
 			for (int i = numEdgesBefore - 1; i >= numEdgesAfter; i--) {
-				workDone += pow(2, i)-1;
+				workDone.add(pow(2, i)-1);
 			}
 
-			// now, actually do the computation
+			// now, actually do the computation. Large components are
+			// independent of each other, so they are handed out to other
+			// workers and collected once the small ones are done.
+			List<TutteTask> forked = new ArrayList<TutteTask>();
 			for (Graph i : biconnects) {
-				num_bicomps++;
+				num_bicomps.increment();
 				if (i.isMulticycle()) {
 					debug("--- Is inner multicycle");
 					// this is actually a cycle!
-					num_cycles++;
+					num_cycles.increment();
 
 					numEdgesBefore = graph.numEdges();
 
-					poly.times(reduce_cycle(new FactorPoly(new X(1)), i));
+					poly.times(reduce_cycle(i));
 
 					numEdgesAfter = graph.numEdges();
-					workDone += numEdgesBefore - numEdgesAfter; 
+					workDone.add(numEdgesBefore - numEdgesAfter);
 					for (int j = numEdgesBefore - 1; j >= numEdgesAfter; j--) {
-						workDone += pow(2, j)-1;
+						workDone.add(pow(2, j)-1);
 					}
 					// if(write_tree) { write_tree_leaf(tid++,i,System.out); }
+				} else if (forkable(i)) {
+					workDone.increment();
+					TutteTask task = new TutteTask(i, tid++);
+					task.fork();
+					forked.add(task);
 				} else {
-					workDone++;
+					workDone.increment();
 					poly.times(tutte(i, tid++));
 				}
 			}
+			for (TutteTask task : forked) {
+				poly.times(task.join());
+			}
 		} else {
 			debug("--- DELETE / CONTRACT ---");
 			// TREE OUTPUT STUFF
-			int lid = tree_id;
-			int rid = tree_id + 1;
-			tree_id = tree_id + 2; // allocate id's now so I know them!
+			int lid = tree_id.getAndAdd(2); // allocate id's now so I know them!
+			int rid = lid + 1;
 			// if(write_tree) { write_tree_nonleaf(mid,lid,2,graph,cout); }
 
 			// === 4. PERFORM DELETE / CONTRACT ===
 
-			Graph g2 = new Graph(graph);
 			Triple<Integer, Integer, Integer> edge = edgeSelection.select_edge(graph, reduce_multiedges);
 
+			// if graph is too small to fork then so is the contracted
+			// graph, and both branches can be evaluated on graph itself
+			boolean inPlace = use_undo_log && !forkable(graph);
+			Graph g2 = null;
+			int mark = 0;
+			if (inPlace) {
+				mark = graph.mark();
+			} else {
+				g2 = new Graph(graph);
+			}
+
 			// System.out.println("---Picked Edge " + edge);
 			// now, delete/contract on the edge's endpoints
 			graph.removeEdge(edge);
-			g2.contractEdge(edge);
+			if (!inPlace) {
+				g2.contractEdge(edge);
+			}
 
 			// System.out.println("------delete");
 			// System.out.println(graph);
 			// System.out.println("------contract");
 			// System.out.println(g2);
 
-			// recursively compute the polynomial, starting with delete
-			workDone+=1;
+			// recursively compute the polynomial, starting with delete. The
+			// two branches are independent, so the contract branch can be
+			// picked up by another worker whilst this one deletes.
+			workDone.increment();
 			if (edge.third > 1) {
 				
 				int numEdges = graph.numEdges();
 				
-				workDone += edge.third; 
+				workDone.add(edge.third);
 				for (int j = numEdges+ edge.third - 1; j >= numEdges ; j--) {
-					workDone += pow(2, j)-1;
+					workDone.add(pow(2, j)-1);
 				}
+			}
+			FactorPoly pp;
+			if (inPlace) {
 				poly = tutte(graph, lid);
-				// System.out.println(poly);
-				FactorPoly pp = tutte(g2, rid);
-				// System.out.println(pp);
-				pp.times(new Y(0, edge.third - 1));
-				
-				poly.add(pp);
+				debug("--returning");
+				graph.undo(mark);
+				graph.contractEdge(edge);
+				pp = tutte(graph, rid);
+			} else if (forkable(g2)) {
+				TutteTask contract = new TutteTask(g2, rid);
+				contract.fork();
+				poly = tutte(graph, lid);
+				pp = contract.join();
 			} else {
 				poly = tutte(graph, lid);
 				debug("--returning");
-				poly.add(tutte(g2, rid));
+				pp = tutte(g2, rid);
 			}
+			// System.out.println(pp);
+			if (edge.third > 1) {
+				pp.times(new Y(0, edge.third - 1));
+			}
+			poly.add(pp);
 		}
 
-		if (cacheEntry.numVertices() >= smallGraphThreshold && !cacheEntry.isMultitree()) {
-			cache.add(cacheEntry, poly);
-		}
-
-		// if(CACHELOOK != null && !CACHELOOK.toString().equals(poly.toString())){
-		// System.out.println(graph);
-		// System.out.println("Cache: " + CACHELOOK.toString());
-		// System.out.println("Computed: " + poly.toString());
-		// System.out.println(poly.toString().equals((new FactorPoly(poly)).toString()));
-		// throw new RuntimeException("Cached value was wrong!!!");
-		// }
-		System.err.printf("\r%.2f%%  %d %d", 100.0 * workDone / (double) totalWork, workDone, totalWork);
-		return poly.timesnew(RF);
+		return poly;
 	}
 
 	// Depricated by reducing not biconnected things
@@ -428,75 +792,88 @@ public class BitTutte {
 	// return r;
 	// }
 
-	private FactorPoly reduce_tree(FactorPoly X_p, Graph graph) {
-		FactorPoly r = new FactorPoly(new Y(0)); // new polymial "1"
-
-		for (int i : graph.vertices()) { // For each vertex
-			for (Pair<Integer, Integer> j : graph.edges(i)) { // For each edge from that vertex
-				if (i >= j.first()) {// no double ups
-					FactorPoly xy = new FactorPoly(X_p);
-					if (j.second() > 1) {
-						xy.add(new Y(1, j.second() - 1));
-					}
-					r.times(xy);
-				}
-			}
-		}
+	/**
+	 * A forest of multi-edges has as its polynomial the product over its edges of x + y + ... + y^(k-1), for an edge of multiplicity
+	 * k. Edges of the same multiplicity give the same factor, so each distinct factor is raised to a power just once.
+	 */
+	private FactorPoly reduce_tree(Graph graph) {
+		return product(multiplicities(graph), true);
+	}
 
+	/**
+	 * A cycle whose edges have multiplicities k_1 ... k_n has as its polynomial (A - B) / (x - 1) + (y - 1) * B, where A is the
+	 * product of x + y + ... + y^(k_i-1), as for a tree, and B the product of 1 + y + ... + y^(k_i-1). A and B agree at x = 1, so the
+	 * division is exact.
+	 */
+	private FactorPoly reduce_cycle(Graph graph) {
+		Map<Integer, Integer> groups = multiplicities(graph);
+		FactorPoly b = product(groups, false);
+		FactorPoly r = product(groups, true);
+		r.minus(b);
+		r.divideByXMinusOne();
+		r.minus(b);
+		b.times(new Y(1));
+		r.add(b);
+		r.trim();
 		return r;
 	}
 
-	static List<Triple<Integer, Integer, Integer>> line = new ArrayList<Triple<Integer, Integer, Integer>>();
-
-	private FactorPoly reduce_cycle(FactorPoly X_p, Graph graph) {
-		// This is a somewhat icky piece of code for reducing
-		// a cycle. it's really a hack at the moment.
-
-		int last = graph.vertices().iterator().next();
-		int v = last;
-		int s = v;
-
-		do {
-			Iterator<Pair<Integer, Integer>> itj = graph.edges(v).iterator();
-			Pair<Integer, Integer> j = itj.next();
-			if (j.first() == last) {
-				j = itj.next();
+	/**
+	 * Count the edges of a graph by their multiplicity
+	 * 
+	 * @return The number of pairs of vertices joined by each number of edges
+	 */
+	private static Map<Integer, Integer> multiplicities(Graph graph) {
+		Map<Integer, Integer> groups = new HashMap<Integer, Integer>();
+		EdgeCursor c = graph.cursor();
+		for (int i : graph.vertices()) { // For each vertex
+			for (c.start(i); c.next();) { // For each edge from that vertex
+				if (i >= c.vertex()) {// no double ups
+					Integer n = groups.get(c.count());
+					groups.put(c.count(), n == null ? 1 : n + 1);
+				}
 			}
-			last = v;
-			line.add(new Triple<Integer, Integer, Integer>(v, j.first(), j.second()));
-			v = j.first();
-		} while (v != s);
-
-		FactorPoly xs = new FactorPoly(X_p);
-		FactorPoly acc = new FactorPoly(X_p);
-		if (line.get(0).third > 1) {
-			acc.add(new Y(1, line.get(0).third - 1));
-			xs.add(new Y(1, line.get(0).third - 1));
 		}
+		return groups;
+	}
 
-		for (int k = 1; k < line.size() - 1; ++k) {
-			FactorPoly tmp = new FactorPoly(X_p);
-			if (line.get(k).third > 1) {
-				tmp.add(new Y(1, line.get(k).third - 1));
-			}
-			if (line.get(k + 1).third > 1) {
-				xs.times(new Y(0, line.get(k + 1).third - 1));
+	/**
+	 * The product of a factor for each group of parallel edges, with the factors of each multiplicity raised to a power together
+	 * 
+	 * @param groups
+	 *            The number of groups of each multiplicity k
+	 * @param x
+	 *            Whether the factor is x + y + ... + y^(k-1), or else 1 + y + ... + y^(k-1)
+	 */
+	private FactorPoly product(Map<Integer, Integer> groups, boolean x) {
+		Integer singles = groups.get(1);
+		FactorPoly r = new FactorPoly(x && singles != null ? new X(singles) : new Y(0), modulus);
+		for (Map.Entry<Integer, Integer> e : groups.entrySet()) {
+			int k = e.getKey();
+			if (k > 1) {
+				FactorPoly f = new FactorPoly(new Y(x ? 1 : 0, k - 1), modulus);
+				if (x) {
+					f.add(new X(1));
+				}
+				r.times(power(f, e.getValue()));
 			}
-			acc.times(tmp);
-			xs.add(acc);
 		}
+		return r;
+	}
 
-		FactorPoly ys = new FactorPoly(new Y(line.get(0).third, line.get(0).third));
-		for (int k = 1; k < line.size(); ++k) {
-			if (line.get(k).third > 1) {
-				ys.times(new Y(0, line.get(k).third - 1));
+	/**
+	 * Raise a polynomial to a positive power by repeated squaring
+	 */
+	private static FactorPoly power(FactorPoly f, int e) {
+		// from the highest bit down, so each multiplication is by f itself
+		FactorPoly r = new FactorPoly(f);
+		for (int bit = Integer.highestOneBit(e) >> 1; bit > 0; bit >>= 1) {
+			r.times(new FactorPoly(r));
+			if ((e & bit) != 0) {
+				r.times(f);
 			}
 		}
-		xs.add(ys);
-
-		line.clear(); // clear it for next time around
-
-		return xs;
+		return r;
 	}
 
 	int reduce_loops(Graph graph) {
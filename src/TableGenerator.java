@@ -0,0 +1,105 @@
+import graph.Graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import polynomial.PackedPoly;
+import util.GraphKey;
+import util.GraphTable;
+
+/**
+ * Builds a GraphTable of the Tutte polynomials of every biconnected loop free multigraph with at most a given number of vertices and
+ * edges, for BitTutte to load with -table.
+ *
+ * Usage: TableGenerator [-vertices n] [-edges m] file
+ *
+ * For each number of vertices the graphs are grown one edge at a time from the empty graph, keeping one graph from each isomorphism
+ * class at each step, so every multigraph on those vertices is reached.
+ */
+public class TableGenerator {
+	int max_vertices = 6;
+	int max_edges = 10;
+
+	public static void main(String[] args) throws IOException {
+		TableGenerator gen = new TableGenerator();
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			if (args[i].equals("-vertices")) {
+				gen.max_vertices = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-edges")) {
+				gen.max_edges = Integer.parseInt(args[++i]);
+			} else {
+				throw new RuntimeException("Unknown option " + args[i]);
+			}
+		}
+		if (i != args.length - 1) {
+			System.err.println("Usage: TableGenerator [-vertices n] [-edges m] file");
+			System.exit(1);
+		}
+		Map<GraphKey, PackedPoly> polys = gen.generate();
+		GraphTable.write(new File(args[i]), gen.max_vertices, gen.max_edges, polys);
+		System.err.println(polys.size() + " graphs written to " + args[i]);
+	}
+
+	/**
+	 * @return The polynomials of all biconnected graphs within the limits
+	 */
+	public Map<GraphKey, PackedPoly> generate() {
+		BitTutte engine = new BitTutte();
+		engine.parallelism = 1;
+		engine.show_progress = false;
+
+		Map<GraphKey, PackedPoly> polys = new LinkedHashMap<GraphKey, PackedPoly>();
+		for (int n = 2; n <= max_vertices; n++) {
+			List<Graph> level = new ArrayList<Graph>();
+			level.add(new Graph(n));
+			for (int m = 1; m <= max_edges; m++) {
+				level = extend(level, n);
+				for (Graph g : level) {
+					if (spanning(g) && g.isBiconnected()) {
+						polys.put(g.key(), new PackedPoly(engine.compute(new Graph(g))));
+					}
+				}
+				System.err.println(n + " vertices, " + m + " edges: " + level.size() + " graphs, " + polys.size() + " in table");
+			}
+		}
+		return polys;
+	}
+
+	/**
+	 * Add one edge to each graph in every possible way, keeping one graph per isomorphism class
+	 */
+	private static List<Graph> extend(List<Graph> level, int n) {
+		Map<GraphKey, Graph> next = new HashMap<GraphKey, Graph>();
+		for (Graph g : level) {
+			for (int i = 0; i < n; i++) {
+				for (int j = i + 1; j < n; j++) {
+					Graph h = new Graph(g);
+					h.addEdge(i, j);
+					GraphKey key = h.key();
+					if (!next.containsKey(key)) {
+						next.put(key, h);
+					}
+				}
+			}
+		}
+		return new ArrayList<Graph>(next.values());
+	}
+
+	/**
+	 * @return True if every vertex of g has an edge
+	 */
+	private static boolean spanning(Graph g) {
+		for (int v : g.vertices()) {
+			if (g.numEdges(v) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
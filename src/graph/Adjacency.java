@@ -0,0 +1,529 @@
+package graph;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import util.Debug;
+import util.Label;
+import util.Pair;
+
+/**
+ * The edges of a multigraph, held as the number of edges between each pair of vertices, along with the list of vertices still in the
+ * graph. Subclasses decide how the counts are stored: AdjacencyMatrix packs them into a matrix, which is fast but takes space quadratic
+ * in the domain size, whilst AdjacencyArray keeps a sorted array of neighbours for each vertex, which takes space linear in the number
+ * of edges.
+ *
+ * Every change to a count goes through setValue(), so this class keeps the totals, the vertex list and the undo log for both. After
+ * mark() every change to a count or to the list of vertices is recorded, and undo() puts them back in reverse order.
+ */
+public abstract class Adjacency {
+	protected int numEdges;
+	protected int domainSize;
+	protected int numMultiEdges;
+	protected int numVertices;
+	/**
+	 * The vertex after each vertex in the list, or -1 for the last one
+	 */
+	protected int[] vertices;
+	protected int startVertex;
+
+	/**
+	 * Changes made since the oldest outstanding mark, three ints each. These are (LOG_MARK, numEdges, numMultiEdges) for a mark,
+	 * (LOG_CLEAR, v, the vertex before v in the list or -1) for a cleared vertex, and otherwise (from, to, old value) for a count.
+	 */
+	private int[] log;
+	private int logSize;
+	protected int marks;
+	private static final int LOG_MARK = -1;
+	private static final int LOG_CLEAR = -2;
+
+	/**
+	 * Start a graph with n vertices and no edges
+	 *
+	 * @param n
+	 *            The number of vertices
+	 */
+	protected Adjacency(int n) {
+		numEdges = 0;
+		numMultiEdges = 0;
+		domainSize = n;
+		numVertices = n;
+		vertices = new int[n];
+		startVertex = 0;
+		for (int i = 0; i < n - 1; i++) {
+			vertices[i] = i + 1;
+		}
+		if (n > 0) {
+			vertices[n - 1] = -1;
+		}
+	}
+
+	/**
+	 * Copy the totals and the vertex list of another graph, but not its edges or its undo log
+	 *
+	 * @param g
+	 *            The graph to copy
+	 */
+	protected Adjacency(Adjacency g) {
+		numEdges = g.numEdges;
+		numMultiEdges = g.numMultiEdges;
+		domainSize = g.domainSize;
+		numVertices = g.numVertices;
+		startVertex = g.startVertex;
+		vertices = g.vertices.clone();
+	}
+
+	/**
+	 * An independent copy of this graph, held in the same way
+	 *
+	 * @return The copy
+	 */
+	public abstract Adjacency copy();
+
+	/**
+	 * A cursor over the edges of this graph
+	 *
+	 * @return A new cursor, which must be started at a vertex before use
+	 */
+	public abstract EdgeCursor cursor();
+
+	/**
+	 * Iterator of edges from v
+	 *
+	 * @param v
+	 *            The source of the edges
+	 * @return Iterator over the edges from v, as (other end, count) pairs
+	 */
+	public abstract Iterable<Pair<Integer, Integer>> edges(int v);
+
+	/**
+	 * Return the degree of a vertex
+	 *
+	 * @param vertex
+	 * @return
+	 */
+	public abstract int numEdges(int vertex);
+
+	/**
+	 * Return the number of vertices that this vertex is connected to. This is the same as the degree except that multiedges are only
+	 * counted as 1 rather than their actual number
+	 *
+	 * @param vertex
+	 * @return
+	 */
+	public abstract int numUnderlyingEdges(int vertex);
+
+	/**
+	 * Returns the number of edges between from and to
+	 *
+	 * @param from
+	 *            The source vertex
+	 * @param to
+	 *            Destination vertex
+	 * @return number of edges between them
+	 */
+	public abstract int numEdges(int from, int to);
+
+	/**
+	 * Copy the neighbours of a vertex into a bitset, in which bit u % 64 of word u / 64 is set if there is an edge to u
+	 *
+	 * @param vertex
+	 *            The vertex
+	 * @param bits
+	 *            At least rowWords() long
+	 */
+	public abstract void neighbours(int vertex, long[] bits);
+
+	/**
+	 * Decode a row of the matrix. Only the entries of neighbours are written, so row should be zeroed beforehand.
+	 *
+	 * @param vertex
+	 *            The vertex
+	 * @param row
+	 *            At least domainSize() long, entry u is set to the number of edges to u
+	 */
+	public abstract void row(int vertex, int[] row);
+
+	/**
+	 * Determine whether the graph is still connected once two of its vertices are removed
+	 *
+	 * @param a
+	 *            A vertex of the graph
+	 * @param b
+	 *            Another vertex of the graph
+	 * @return True if the other vertices are all connected to each other
+	 */
+	public abstract boolean connectedWithout(int a, int b);
+
+	/**
+	 * Remove every edge at a vertex which has just been taken out of the vertex list, keeping the totals up to date
+	 *
+	 * @param v
+	 *            The vertex
+	 */
+	protected abstract void clearEdges(int v);
+
+	/**
+	 * Store the number of edges from one vertex to another, without logging it. Only one direction is written.
+	 */
+	protected abstract void write(int from, int to, int val);
+
+	/**
+	 * The range of values that are vertices
+	 *
+	 * @return The number of vertex there are
+	 */
+	public int domainSize() {
+		return domainSize;
+	}
+
+	/**
+	 * Vertex iterator
+	 *
+	 * @return
+	 */
+	public Iterable<Integer> vertices() {
+		return new VertexIterable();
+	}
+
+	public int numVertices() {
+		return numVertices;
+	}
+
+	public int numEdges() {
+		return numEdges;
+	}
+
+	public int numUnderlyingEdges() {
+		return numEdges - numMultiEdges;
+	}
+
+	public int numMultiedges() {
+		return numMultiEdges;
+	}
+
+	public boolean isMultiGraph() {
+		return numMultiEdges > 0;
+	}
+
+	/**
+	 * The number of words in a row of neighbours
+	 *
+	 * @return (domainSize + 63) / 64
+	 */
+	public int rowWords() {
+		return (domainSize + 63) >>> 6;
+	}
+
+	/**
+	 * Remove a vertex. This vertex is now guaranteed to have no edges to or from it It is also removed from the list of vertices
+	 *
+	 * @param v
+	 *            The vertex to clear
+	 */
+	public void clear(int v) {
+		// Remove v from the list of vertices
+		int prev = -1;
+		if (startVertex == v) {
+			startVertex = vertices[v];
+		} else {
+			int i = startVertex;
+			while (vertices[i] != v) {
+				i = vertices[i];
+				if (i == -1) {
+					return;
+				}
+			}
+			vertices[i] = vertices[v];
+			prev = i;
+		}
+		vertices[v] = -1;
+		numVertices--;
+		if (marks > 0) {
+			record(LOG_CLEAR, v, prev);
+		}
+		clearEdges(v);
+	}
+
+	/**
+	 * Store the number of edges from one vertex to another, logging the old number if there is a mark
+	 */
+	protected final void setValue(int from, int to, int val) {
+		if (marks > 0) {
+			record(from, to, numEdges(from, to));
+		}
+		write(from, to, val);
+	}
+
+	private void record(int a, int b, int c) {
+		if (logSize + 3 > log.length) {
+			log = Arrays.copyOf(log, log.length * 2);
+		}
+		log[logSize++] = a;
+		log[logSize++] = b;
+		log[logSize++] = c;
+	}
+
+	/**
+	 * Start recording changes, so that they can be undone. Marks nest, and changes are recorded until the oldest is undone.
+	 *
+	 * @return The mark, to pass to undo()
+	 */
+	public int mark() {
+		if (log == null) {
+			log = new int[3 * 64];
+		}
+		int m = logSize;
+		record(LOG_MARK, numEdges, numMultiEdges);
+		marks++;
+		return m;
+	}
+
+	/**
+	 * Put the graph back as it was when a mark was taken, dropping any marks taken since
+	 *
+	 * @param m
+	 *            A mark returned by mark()
+	 */
+	public void undo(int m) {
+		while (logSize > m) {
+			logSize -= 3;
+			int a = log[logSize];
+			int b = log[logSize + 1];
+			int c = log[logSize + 2];
+			if (a == LOG_MARK) {
+				numEdges = b;
+				numMultiEdges = c;
+				marks--;
+			} else if (a == LOG_CLEAR) {
+				if (c == -1) {
+					vertices[b] = startVertex;
+					startVertex = b;
+				} else {
+					vertices[b] = vertices[c];
+					vertices[c] = b;
+				}
+				numVertices++;
+			} else {
+				write(a, b, c);
+			}
+		}
+	}
+
+	/**
+	 * Add c many of an edge from from to to
+	 *
+	 * @param from
+	 * @param to
+	 * @param c
+	 * @return True if the edge already exists
+	 */
+	public boolean addEdge(int from, int to, int c) {
+		numEdges += c;
+
+		int num = this.numEdges(from, to);
+		if (num == 0) {
+			numMultiEdges += c - 1;
+		} else {
+			numMultiEdges += c;
+		}
+
+		c += num;
+
+		setValue(from, to, c);
+		if (from != to) {
+			setValue(to, from, c);
+		}
+
+		return num != 0;
+	}
+
+	/**
+	 * Add an undirected edge from from to to
+	 *
+	 * @param from
+	 *            Source
+	 * @param to
+	 *            Sink
+	 * @return True if the edge already exists
+	 */
+	public boolean addEdge(int from, int to) {
+		return addEdge(from, to, 1);
+	}
+
+	public boolean removeEdge(int from, int to, int c) {
+
+		int i = numEdges(from, to);
+		if (i == 0) {
+			return false;
+		}
+		if (i > c) {
+			// this is a multi-edge, so decrement count.
+			numMultiEdges -= c;
+			numEdges -= c;
+			setValue(from, to, i - c);
+			if (from != to) {
+				setValue(to, from, i - c);
+			}
+		} else {
+			// set to zero
+			numEdges -= i;
+			numMultiEdges -= (i - 1);
+			setValue(from, to, 0);
+			if (from != to) {
+				setValue(to, from, 0);
+			}
+		}
+		return true;
+	}
+
+	public int removeAllEdges(int from, int to) {
+		// remove all edges "from--to"
+		int r = numEdges(from, to);
+		if (r != 0) {
+			numEdges -= r;
+			numMultiEdges -= (r - 1);
+			setValue(from, to, 0);
+			if (from != to) {
+				setValue(to, from, 0);
+			}
+		}
+
+		return r;
+	}
+
+	/**
+	 * Remove an edge (only one in the case of a multi edge)
+	 *
+	 * @param from
+	 *            Source
+	 * @param to
+	 *            Sink
+	 * @return
+	 */
+	public boolean removeEdge(int from, int to) {
+		return removeEdge(from, to, 1);
+	}
+
+	public void remove(Adjacency g) {
+		EdgeCursor c = g.cursor();
+		for (int i : g.vertices()) {
+			for (c.start(i); c.next();) {
+				if (i >= c.vertex()) {
+					removeAllEdges(i, c.vertex());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove the edges of a graph whose vertices are numbered differently
+	 *
+	 * @param g
+	 *            The graph whose edges are removed
+	 * @param l
+	 *            Takes the vertices here to those of g
+	 */
+	public void remove(Adjacency g, Label l) {
+		EdgeCursor c = g.cursor();
+		for (int i : g.vertices()) {
+			for (c.start(i); c.next();) {
+				if (i >= c.vertex()) {
+					removeAllEdges(l.oldName(i), l.oldName(c.vertex()));
+				}
+			}
+		}
+	}
+
+	// Ok, this implementation is seriously inefficient!
+	// could use an indirection trick here as one solution?
+	//
+	// POST: vertex 'from' remains, whilst vertex 'to' is removed
+	void contractEdge(int from, int to) {
+		if (from == to) {
+			throw new RuntimeException("cannot contract a loop!");
+		}
+		EdgeCursor c = cursor();
+		for (c.start(to); c.next();) {
+			if (c.vertex() == to) {
+				// is self loop
+				addEdge(from, from, c.count());
+			} else {
+				addEdge(from, c.vertex(), c.count());
+			}
+		}
+
+		clear(to);
+		removeEdge(from, from,1);
+	}
+
+	public String toString() {
+		StringBuilder ss = new StringBuilder();
+		for (int i : vertices()) {
+			for (Pair<Integer, Integer> e : edges(i)) {
+				if (e.first() >= i || Debug.debug) {
+					ss = ss.append(i).append(" -> ").append(e.first()).append(" x").append(e.second()).append('\n');
+				}
+			}
+		}
+
+		return ss.toString();
+	}
+
+	/**
+	 * Relabel the graph into the packed form of AdjacencyMatrix, over the labelled vertices only, so that the result does not depend
+	 * on the domain size. Multiplicities of OVERFLOW or more are all written as OVERFLOW.
+	 */
+	public int[] label(Label l){
+		int n = l.newDomain();
+		int cellSize = AdjacencyMatrix.CELL_SIZE;
+		int[] vals = new int[(int) Math.ceil(n * n * cellSize / 32.0)];
+		for(int i = 0 ; i < n; i++){
+			for(int j = 0 ; j< n; j++){
+				AdjacencyMatrix.setValue(i,j,Math.min(this.numEdges(l.oldName(i), l.oldName(j)), AdjacencyMatrix.OVERFLOW),n, vals);
+			}
+		}
+		return vals;
+	}
+
+	private class VertexIterable implements Iterable<Integer> {
+
+		@Override
+		public Iterator<Integer> iterator() {
+			return new VertexIterator(Adjacency.this.vertices);
+		}
+
+	}
+
+	private class VertexIterator implements Iterator<Integer> {
+		private int[] vertices;
+		private int nextIndex;
+
+		public VertexIterator(int[] vertices) {
+			this.vertices = vertices;
+			if (numVertices == 0) {
+				nextIndex = -1;
+			} else {
+				nextIndex = startVertex;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return nextIndex != -1;
+		}
+
+		@Override
+		public Integer next() {
+			int ret = nextIndex;
+			nextIndex = vertices[nextIndex];
+			return ret;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Remove not implemented");
+		}
+
+	}
+}
@@ -0,0 +1,397 @@
+package graph;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import util.Pair;
+
+/**
+ * A multigraph as a sorted array of neighbours for each vertex, with the number of edges to each neighbour alongside. This takes space
+ * linear in the number of edges rather than quadratic in the domain size, so it suits large sparse graphs, but finding the number of
+ * edges between two vertices takes a binary search rather than a lookup.
+ *
+ * As in AdjacencyMatrix, copies share their rows with the original until one of them writes to a row, and changes can be undone
+ * through the undo log of Adjacency.
+ */
+public class AdjacencyArray extends Adjacency {
+	/**
+	 * The neighbours of each vertex in increasing order, in the first degree[v] entries
+	 */
+	private int[][] targets;
+	/**
+	 * The number of edges to each neighbour
+	 */
+	private int[][] counts;
+	private int[] degree;
+	/**
+	 * Whether each row (of targets and counts) belongs to this graph alone, and so can be written to
+	 */
+	private boolean[] owned;
+	private static final int[] EMPTY = new int[0];
+
+	/**
+	 * Make a new graph with a given number of vertices and no edges
+	 *
+	 * @param n
+	 *            The number of vertices
+	 */
+	public AdjacencyArray(int n) {
+		super(n);
+		targets = new int[n][];
+		counts = new int[n][];
+		Arrays.fill(targets, EMPTY);
+		Arrays.fill(counts, EMPTY);
+		degree = new int[n];
+		owned = new boolean[n];
+	}
+
+	/**
+	 * Clone an existing AdjacencyArray. The two are independent and identical, but share their rows until either is written to, so g
+	 * must not be in use by another thread at the time.
+	 *
+	 * @param g
+	 *            The AdjacencyArray to clone
+	 */
+	public AdjacencyArray(AdjacencyArray g) {
+		super(g);
+		targets = g.targets.clone();
+		counts = g.counts.clone();
+		degree = g.degree.clone();
+		owned = new boolean[domainSize];
+		Arrays.fill(g.owned, false);
+	}
+
+	/**
+	 * Copy a graph held in some other way into arrays
+	 *
+	 * @param g
+	 *            The graph to copy
+	 */
+	public AdjacencyArray(Adjacency g) {
+		super(g);
+		targets = new int[domainSize][];
+		counts = new int[domainSize][];
+		Arrays.fill(targets, EMPTY);
+		Arrays.fill(counts, EMPTY);
+		degree = new int[domainSize];
+		owned = new boolean[domainSize];
+		EdgeCursor c = g.cursor();
+		for (int v : g.vertices()) {
+			int d = 0;
+			for (c.start(v); c.next();) {
+				d++;
+			}
+			if (d > 0) {
+				targets[v] = new int[d];
+				counts[v] = new int[d];
+				owned[v] = true;
+				for (c.start(v); c.next();) {
+					targets[v][degree[v]] = c.vertex();
+					counts[v][degree[v]++] = c.count();
+				}
+			}
+		}
+	}
+
+	/**
+	 * An estimate of the heap space a graph held in arrays would take up, with rows of the same length as the degree
+	 *
+	 * @param domainSize
+	 *            The domain size of the graph
+	 * @param underlyingEdges
+	 *            The number of pairs of vertices with edges between them
+	 * @return Size in bytes
+	 */
+	public static long estimate(int domainSize, int underlyingEdges) {
+		return 64 + 3 * (16 + 4L * domainSize) + 2 * (16 + 8L * domainSize) + 32L * domainSize + 16L * underlyingEdges;
+	}
+
+	@Override
+	public Adjacency copy() {
+		return new AdjacencyArray(this);
+	}
+
+	@Override
+	public EdgeCursor cursor() {
+		return new Cursor();
+	}
+
+	@Override
+	public Iterable<Pair<Integer, Integer>> edges(final int v) {
+		return new Iterable<Pair<Integer, Integer>>() {
+			@Override
+			public Iterator<Pair<Integer, Integer>> iterator() {
+				return new Iterator<Pair<Integer, Integer>>() {
+					private int index = 0;
+
+					@Override
+					public boolean hasNext() {
+						return index < degree[v];
+					}
+
+					@Override
+					public Pair<Integer, Integer> next() {
+						Pair<Integer, Integer> ret = new Pair<Integer, Integer>(targets[v][index], counts[v][index]);
+						index++;
+						return ret;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException("Remove not implemented");
+					}
+				};
+			}
+		};
+	}
+
+	@Override
+	public int numEdges(int vertex) {
+		int count = 0;
+		int[] c = counts[vertex];
+		for (int i = 0; i < degree[vertex]; i++) {
+			count += c[i];
+		}
+		return count;
+	}
+
+	@Override
+	public int numUnderlyingEdges(int vertex) {
+		return degree[vertex];
+	}
+
+	@Override
+	public int numEdges(int from, int to) {
+		int i = Arrays.binarySearch(targets[from], 0, degree[from], to);
+		return i >= 0 ? counts[from][i] : 0;
+	}
+
+	@Override
+	public void neighbours(int vertex, long[] bits) {
+		Arrays.fill(bits, 0, rowWords(), 0);
+		int[] t = targets[vertex];
+		for (int i = 0; i < degree[vertex]; i++) {
+			bits[t[i] >>> 6] |= 1L << t[i];
+		}
+	}
+
+	@Override
+	public void row(int vertex, int[] row) {
+		int[] t = targets[vertex];
+		int[] c = counts[vertex];
+		for (int i = 0; i < degree[vertex]; i++) {
+			row[t[i]] = c[i];
+		}
+	}
+
+	/**
+	 * Determine whether the graph is still connected once two of its vertices are removed, by a breadth first search from one of the
+	 * others.
+	 */
+	@Override
+	public boolean connectedWithout(int a, int b) {
+		int start = startVertex;
+		while (start == a || start == b) {
+			start = vertices[start];
+		}
+		if (start == -1) {
+			return true;
+		}
+		boolean[] reached = new boolean[domainSize];
+		int[] queue = new int[numVertices];
+		// a and b count as reached, so they are never spread from
+		reached[a] = true;
+		reached[b] = true;
+		reached[start] = true;
+		queue[0] = start;
+		int head = 0, tail = 1;
+		while (head < tail) {
+			int v = queue[head++];
+			int[] t = targets[v];
+			for (int i = 0; i < degree[v]; i++) {
+				if (!reached[t[i]]) {
+					reached[t[i]] = true;
+					queue[tail++] = t[i];
+				}
+			}
+		}
+		return tail == numVertices - 2;
+	}
+
+	@Override
+	protected void clearEdges(int v) {
+		// first delete the other end of each edge. Going backwards means
+		// that removing a loop only moves entries already dealt with
+		for (int i = degree[v] - 1; i >= 0; i--) {
+			int num = counts[v][i];
+			numEdges -= num;
+			numMultiEdges -= (num - 1);
+			setValue(targets[v][i], v, 0);
+		}
+
+		// Now, clear the row itself, by sharing the empty row unless the
+		// old one has to be logged
+		if (marks > 0) {
+			for (int i = degree[v] - 1; i >= 0; i--) {
+				setValue(v, targets[v][i], 0);
+			}
+			return;
+		}
+		targets[v] = EMPTY;
+		counts[v] = EMPTY;
+		degree[v] = 0;
+		owned[v] = false;
+	}
+
+	@Override
+	protected void write(int from, int to, int val) {
+		int d = degree[from];
+		int i = Arrays.binarySearch(targets[from], 0, d, to);
+		if (i >= 0) {
+			own(from, d);
+			if (val == 0) {
+				System.arraycopy(targets[from], i + 1, targets[from], i, d - i - 1);
+				System.arraycopy(counts[from], i + 1, counts[from], i, d - i - 1);
+				degree[from]--;
+			} else {
+				counts[from][i] = val;
+			}
+		} else if (val != 0) {
+			i = -i - 1;
+			own(from, d + 1);
+			System.arraycopy(targets[from], i, targets[from], i + 1, d - i);
+			System.arraycopy(counts[from], i, counts[from], i + 1, d - i);
+			targets[from][i] = to;
+			counts[from][i] = val;
+			degree[from]++;
+		}
+	}
+
+	/**
+	 * Make a row this graph's own, with room for at least a given number of neighbours
+	 */
+	private void own(int v, int size) {
+		int capacity = targets[v].length;
+		if (owned[v] && capacity >= size) {
+			return;
+		}
+		if (capacity < size) {
+			capacity = Math.max(4, Math.max(size, 2 * capacity));
+		}
+		targets[v] = Arrays.copyOf(targets[v], capacity);
+		counts[v] = Arrays.copyOf(counts[v], capacity);
+		owned[v] = true;
+	}
+
+	private class Cursor implements EdgeCursor {
+		int vertex;
+		int index;
+
+		@Override
+		public void start(int v) {
+			vertex = v;
+			index = -1;
+		}
+
+		@Override
+		public boolean next() {
+			return ++index < degree[vertex];
+		}
+
+		@Override
+		public int vertex() {
+			return targets[vertex][index];
+		}
+
+		@Override
+		public int count() {
+			return counts[vertex][index];
+		}
+	}
+
+	/**
+	 * Apply the same random changes to an AdjacencyArray and an AdjacencyMatrix, including copies and undoing, and check that they
+	 * always agree
+	 */
+	public static void main(String args[]) {
+		Random rand = new Random(1);
+		for (int round = 0; round < 200; round++) {
+			int n = 2 + rand.nextInt(70);
+			Adjacency a = new AdjacencyArray(n);
+			Adjacency m = new AdjacencyMatrix(n);
+			int mark = -1;
+			int matrixMark = -1;
+			for (int step = 0; step < 400; step++) {
+				// only vertices still in the graph are ever given edges
+				int[] live = new int[a.numVertices()];
+				int k = 0;
+				for (int v : a.vertices()) {
+					live[k++] = v;
+				}
+				if (k == 0) {
+					break;
+				}
+				int from = live[rand.nextInt(k)];
+				int to = live[rand.nextInt(k)];
+				switch (rand.nextInt(8)) {
+				case 0:
+				case 1:
+				case 2:
+					int c = rand.nextInt(4) == 0 ? 30 + rand.nextInt(60) : 1;
+					a.addEdge(from, to, c);
+					m.addEdge(from, to, c);
+					break;
+				case 3:
+					a.removeEdge(from, to, 1);
+					m.removeEdge(from, to, 1);
+					break;
+				case 4:
+					if (from != to && a.numEdges(from, to) > 0) {
+						a.contractEdge(from, to);
+						m.contractEdge(from, to);
+					}
+					break;
+				case 5:
+					if (rand.nextInt(4) == 0) {
+						a.clear(from);
+						m.clear(from);
+					}
+					break;
+				case 6:
+					if (mark < 0) {
+						mark = a.mark();
+						matrixMark = m.mark();
+					} else {
+						a.undo(mark);
+						m.undo(matrixMark);
+						mark = -1;
+					}
+					break;
+				default:
+					if (mark < 0) {
+						// switch representations, so both directions are tried
+						Adjacency t = new AdjacencyMatrix(a);
+						a = new AdjacencyArray(m).copy();
+						m = t.copy();
+					}
+				}
+				if (!a.toString().equals(m.toString()) || a.numEdges() != m.numEdges() || a.numMultiedges() != m.numMultiedges()
+						|| a.numVertices() != m.numVertices()) {
+					throw new RuntimeException("Arrays and matrix disagree in round " + round + " step " + step + ":\n" + a + "\n" + m);
+				}
+				for (int v : a.vertices()) {
+					if (a.numEdges(v) != m.numEdges(v) || a.numUnderlyingEdges(v) != m.numUnderlyingEdges(v)) {
+						throw new RuntimeException("Degrees of " + v + " disagree in round " + round + " step " + step);
+					}
+					for (int w : a.vertices()) {
+						if (v < w && a.connectedWithout(v, w) != m.connectedWithout(v, w)) {
+							throw new RuntimeException("Connectivity without " + v + " and " + w + " disagrees in round " + round);
+						}
+					}
+				}
+			}
+		}
+		System.out.println("Arrays agree with the matrix");
+	}
+}
@@ -50,6 +50,43 @@ public class AdjacencyList  {
 		return edges.get(v).entrySet();
 	}
 
+	/**
+	 * A cursor over the edges of this list. This still walks the underlying maps, so it allocates an iterator each time it is
+	 * started, but not for each edge.
+	 * 
+	 * @return A new cursor, which must be started at a vertex before use
+	 */
+	public EdgeCursor cursor() {
+		return new EdgeCursor() {
+			private Iterator<Map.Entry<Integer, Integer>> it;
+			private Map.Entry<Integer, Integer> e;
+
+			@Override
+			public void start(int v) {
+				it = edges.get(v).entrySet().iterator();
+			}
+
+			@Override
+			public boolean next() {
+				if (!it.hasNext()) {
+					return false;
+				}
+				e = it.next();
+				return true;
+			}
+
+			@Override
+			public int vertex() {
+				return e.getKey();
+			}
+
+			@Override
+			public int count() {
+				return e.getValue();
+			}
+		};
+	}
+
 	public boolean equals(Object o){
 		if(o instanceof AdjacencyList){
 			return this.equals((AdjacencyList)o);
@@ -1,20 +1,46 @@
 package graph;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
-import util.Debug;
-import util.Label;
 import util.Pair;
 
-public class AdjacencyMatrix {
-	private int numEdges;
-	private int domainSize;
-	private int numMultiEdges;
-	private int[] edges;
-	private static final int CELL_SIZE = 6;
-	private int numVertices;
-	private int[] vertices;
-	private int startVertex;
+/**
+ * A multigraph as a matrix of edge counts, packed CELL_SIZE bits to a cell with each row in its own array.
+ *
+ * Copies share their rows with the original until one of them writes to a row, at which point the writer takes its own copy of just
+ * that row. So copying costs O(n), and a delete or contract then only copies the rows it touches. A row shared by several matrices
+ * is never written to, so matrices sharing rows can be used by different threads.
+ *
+ * The undo log of Adjacency also works here, so a recursion can work on one matrix rather than on copies.
+ */
+public class AdjacencyMatrix extends Adjacency {
+	/**
+	 * The cells of each row
+	 */
+	private int[][] edges;
+	/**
+	 * Whether each row (of edges and neighbours) belongs to this matrix alone, and so can be written to
+	 */
+	private boolean[] owned;
+	private int rowInts;
+	public static final int CELL_SIZE = 6;
+	/**
+	 * A cell holding this value has its multiplicity in the overflow table, since it does not fit in the cell
+	 */
+	public static final int OVERFLOW = (1 << CELL_SIZE) - 1;
+	/**
+	 * The multiplicities of at least OVERFLOW, by from * domainSize + to, or null if there are none yet
+	 */
+	private Map<Integer, Integer> overflow;
+	/**
+	 * One bit per cell of edges, set when the cell is non zero, so that rows can be scanned a word at a time
+	 */
+	private long[][] neighbours;
+	private int rowWords;
 
 	/**
 	 * Make a new Adjacency matrix with a given number of vertices. All vertices MUST have edges added to them during construction
@@ -23,61 +49,73 @@ public class AdjacencyMatrix {
 	 *            The number of vertices
 	 */
 	public AdjacencyMatrix(int n) {
-		numEdges = 0;
-		numMultiEdges = 0;
-		domainSize = n;
-		numVertices = n;
-		edges = new int[(int) Math.ceil(n * n * CELL_SIZE / 32.0)];
-
-		vertices = new int[n];
-		startVertex = 0;
-		for (int i = 0; i < n - 1; i++) {
-			vertices[i] = i + 1;
-		}
-		vertices[n - 1] = -1;
-
+		super(n);
+		rowInts = (n * CELL_SIZE + 31) >>> 5;
+		rowWords = (n + 63) >>> 6;
+		edges = new int[n][rowInts];
+		neighbours = new long[n][rowWords];
+		owned = new boolean[n];
+		Arrays.fill(owned, true);
 	}
 
 	/**
-	 * Deep clone an existing AdjacencyMatrix. The two are independent and identical
+	 * Clone an existing AdjacencyMatrix. The two are independent and identical, but share their rows until either is written to, so
+	 * g must not be in use by another thread at the time.
 	 * 
 	 * @param g
 	 *            The AdjacencyMatrix to clone
 	 */
 	public AdjacencyMatrix(AdjacencyMatrix g) {
-		numEdges = g.numEdges;
-		numMultiEdges = g.numMultiEdges;
-		domainSize = g.domainSize;
-		edges = new int[g.edges.length];
-
-		for (int i = 0; i < edges.length; i++) {
-			edges[i] = g.edges[i];
-		}
-
-		numVertices = g.numVertices;
-		startVertex = g.startVertex;
-		vertices = new int[g.vertices.length];
-		for (int i = 0; i < vertices.length; i++) {
-			vertices[i] = g.vertices[i];
+		super(g);
+		rowInts = g.rowInts;
+		rowWords = g.rowWords;
+		edges = g.edges.clone();
+		neighbours = g.neighbours.clone();
+		owned = new boolean[domainSize];
+		Arrays.fill(g.owned, false);
+		if (g.overflow != null) {
+			overflow = new HashMap<Integer, Integer>(g.overflow);
 		}
 	}
 
 	/**
-	 * The range of values that are vertices
+	 * Copy a graph held in some other way into a matrix
 	 * 
-	 * @return The number of vertex there are
+	 * @param g
+	 *            The graph to copy
 	 */
-	public int domainSize() {
-		return domainSize;
+	public AdjacencyMatrix(Adjacency g) {
+		super(g);
+		rowInts = (domainSize * CELL_SIZE + 31) >>> 5;
+		rowWords = (domainSize + 63) >>> 6;
+		edges = new int[domainSize][rowInts];
+		neighbours = new long[domainSize][rowWords];
+		owned = new boolean[domainSize];
+		Arrays.fill(owned, true);
+		EdgeCursor c = g.cursor();
+		for (int v : g.vertices()) {
+			for (c.start(v); c.next();) {
+				write(v, c.vertex(), c.count());
+			}
+		}
 	}
 
 	/**
-	 * Vertex iterator
+	 * An estimate of the heap space a matrix would take up
 	 * 
-	 * @return
+	 * @param domainSize
+	 *            The domain size of the graph
+	 * @return Size in bytes
 	 */
-	public Iterable<Integer> vertices() {
-		return new VertexIterable();
+	public static long estimate(int domainSize) {
+		long rowInts = (domainSize * CELL_SIZE + 31) >>> 5;
+		long rowWords = (domainSize + 63) >>> 6;
+		return 64 + 3 * (16 + 4L * domainSize) + domainSize * (16 + 4 * rowInts + 16 + 8 * rowWords);
+	}
+
+	@Override
+	public Adjacency copy() {
+		return new AdjacencyMatrix(this);
 	}
 
 	/**
@@ -91,6 +129,15 @@ public class AdjacencyMatrix {
 		return new EdgeIterable(v);
 	}
 
+	/**
+	 * A cursor over the edges of this matrix, which does not allocate as it goes
+	 * 
+	 * @return A new cursor, which must be started at a vertex before use
+	 */
+	public EdgeCursor cursor() {
+		return new Cursor();
+	}
+
 	public boolean equals(Object o) {
 		if (o instanceof AdjacencyMatrix) {
 			return this.equals((AdjacencyMatrix) o);
@@ -106,23 +153,13 @@ public class AdjacencyMatrix {
 			return false;
 		}
 		for (int i = 0; i < this.edges.length; i++) {
-			if (this.edges[i] != a.edges[i]) {
+			if (this.edges[i] != a.edges[i] && !Arrays.equals(this.edges[i], a.edges[i])) {
 				return false;
 			}
 		}
-		return true;
-	}
-
-	public int numVertices() {
-		return numVertices;
-	}
-
-	public int numEdges() {
-		return numEdges;
-	}
-
-	public int numUnderlyingEdges() {
-		return numEdges - numMultiEdges;
+		// a missing overflow table is the same as an empty one
+		Map<Integer, Integer> none = Collections.emptyMap();
+		return (overflow != null ? overflow : none).equals(a.overflow != null ? a.overflow : none);
 	}
 
 	/**
@@ -133,8 +170,13 @@ public class AdjacencyMatrix {
 	 */
 	public int numEdges(int vertex) {
 		int count = 0;
-		for (Pair<Integer, Integer> i : edges(vertex)) {
-			count += i.second();
+		long[] row = neighbours[vertex];
+		for (int w = 0; w < rowWords; w++) {
+			long bits = row[w];
+			while (bits != 0) {
+				count += numEdges(vertex, (w << 6) + Long.numberOfTrailingZeros(bits));
+				bits &= bits - 1;
+			}
 		}
 		return count;
 	}
@@ -148,12 +190,94 @@ public class AdjacencyMatrix {
 	 */
 	public int numUnderlyingEdges(int vertex) {
 		int count = 0;
-		for (Pair<Integer, Integer> i : edges(vertex)) {
-			count++;
+		long[] row = neighbours[vertex];
+		for (int w = 0; w < rowWords; w++) {
+			count += Long.bitCount(row[w]);
 		}
 		return count;
 	}
 
+	/**
+	 * Copy the neighbours of a vertex into a bitset, in which bit u % 64 of word u / 64 is set if there is an edge to u
+	 * 
+	 * @param vertex
+	 *            The vertex
+	 * @param bits
+	 *            At least rowWords() long
+	 */
+	public void neighbours(int vertex, long[] bits) {
+		System.arraycopy(neighbours[vertex], 0, bits, 0, rowWords);
+	}
+
+	/**
+	 * Decode a row of the matrix. Only the entries of neighbours are written, so row should be zeroed beforehand.
+	 * 
+	 * @param vertex
+	 *            The vertex
+	 * @param row
+	 *            At least domainSize() long, entry u is set to the number of edges to u
+	 */
+	public void row(int vertex, int[] row) {
+		long[] nbrs = neighbours[vertex];
+		for (int w = 0; w < rowWords; w++) {
+			long bits = nbrs[w];
+			while (bits != 0) {
+				int u = (w << 6) + Long.numberOfTrailingZeros(bits);
+				row[u] = numEdges(vertex, u);
+				bits &= bits - 1;
+			}
+		}
+	}
+
+	/**
+	 * Determine whether the graph is still connected once two of its vertices are removed. The search spreads out a row of neighbours
+	 * at a time.
+	 * 
+	 * @param a
+	 *            A vertex of the graph
+	 * @param b
+	 *            Another vertex of the graph
+	 * @return True if the other vertices are all connected to each other
+	 */
+	public boolean connectedWithout(int a, int b) {
+		int start = startVertex;
+		while (start == a || start == b) {
+			start = vertices[start];
+		}
+		if (start == -1) {
+			return true;
+		}
+		long[] reached = new long[rowWords];
+		long[] todo = new long[rowWords];
+		reached[start >>> 6] |= 1L << start;
+		todo[start >>> 6] |= 1L << start;
+		// a and b count as reached, so they are never spread from
+		reached[a >>> 6] |= 1L << a;
+		reached[b >>> 6] |= 1L << b;
+		int count = 1;
+		for (int w = 0; w < rowWords;) {
+			if (todo[w] == 0) {
+				w++;
+				continue;
+			}
+			int v = (w << 6) + Long.numberOfTrailingZeros(todo[w]);
+			todo[w] &= todo[w] - 1;
+			long[] row = neighbours[v];
+			for (int k = 0; k < rowWords; k++) {
+				long fresh = row[k] & ~reached[k];
+				if (fresh != 0) {
+					reached[k] |= fresh;
+					todo[k] |= fresh;
+					count += Long.bitCount(fresh);
+					if (k < w) {
+						w = k;
+					}
+				}
+			}
+		}
+		return count == numVertices - 2;
+	}
+
 	/**
 	 * Returns the number of edges between from and to
 	 * 
@@ -164,58 +288,33 @@ public class AdjacencyMatrix {
 	 * @return number of edges between them
 	 */
 	public int numEdges(int from, int to) {
-		long startBit = domainSize * CELL_SIZE * from + CELL_SIZE * to;
-		int startInt = (int) (startBit / 32);
-		int index = (int) (startBit % 32);
+		int[] edges = this.edges[from];
+		int startBit = CELL_SIZE * to;
+		int startInt = startBit >>> 5;
+		int index = startBit & 31;
 		boolean overflow = (index + CELL_SIZE) > 32;
+		int ret;
 		if (overflow) {
 			long v = ((0xFFFFFFFFL &  edges[startInt])) | ((0xFFFFFFFFL & edges[startInt + 1]) << 32);
 			int m = (1 << CELL_SIZE) - 1;
-			long ret = (v >> index) & m;
-			return (int) ret;
+			ret = (int) ((v >> index) & m);
 		} else {
 			int v = edges[startInt];
 			int m = (1 << CELL_SIZE) - 1;
-			int ret = (v >> index) & m;
-			return ret;
+			ret = (v >> index) & m;
 		}
-	}
-
-	public int numMultiedges() {
-		return numMultiEdges;
-	}
-
-	public boolean isMultiGraph() {
-		return numMultiEdges > 0;
-	}
-
-	/**
-	 * Remove a vertex. This vertex is now guaranteed to have no edges to or from it It is also removed from the list of vertices
-	 * 
-	 * @param v
-	 *            The vertex to clear
-	 */
-	public void clear(int v) {
-		// Remove v from the list of vertices
-		if (startVertex == v) {
-			startVertex = vertices[v];
-		} else {
-			int i = startVertex;
-			while (vertices[i] != v) {
-				i = vertices[i];
-				if (i == -1) {
-					return;
-				}
-			}
-			vertices[i] = vertices[v];
+		if (ret == OVERFLOW) {
+			return this.overflow.get(from * domainSize + to);
 		}
-		vertices[v] = -1;
-		numVertices--;
+		return ret;
+	}
 
+	@Override
+	protected void clearEdges(int v) {
 		// first delete the edges that don't start at you
 		// Now delete the columns
 		for (int i = 0; i < domainSize; i++) {
-			int num = numEdges(i, v);
+			int num = (neighbours[i][v >>> 6] & (1L << v)) != 0 ? numEdges(i, v) : 0;
 			if (num != 0) {
 				numEdges -= num;
 				numMultiEdges -= (num - 1);
@@ -223,193 +322,58 @@ public class AdjacencyMatrix {
 			}
 		}
 
-		// Now, clear all edges involving v
-		// first the row This is done long ways as this might be faster as it
-		// can write an int at a time
-		long startBit = domainSize * CELL_SIZE * v;
-		long endBit = domainSize * CELL_SIZE * (v + 1);
-
-		int startInt = (int) (startBit / 32);
-		int endInt = (int) (endBit / 32);
-		int endIndex = (int) (endBit % 32);
-		int startIndex = (int) (startBit % 32);
-
-		if (startInt == endInt) {
-			// If the whole row is contain within the current int
-			int m = 0xFFFFFFFF << (domainSize * CELL_SIZE);
-			m |= (1 << startIndex) - 1;
-			edges[startInt] &= m;
-		} else {
-			// clear the starting int
-			if (startIndex != 0) {
-				// Need to only clear the END of the starting int
-				int m = (1 << startIndex) - 1;
-				edges[startInt] &= m;
-				startInt++;
-			}
-			while (startInt < endInt) {
-				edges[startInt++] = 0;
+		// Now, clear all edges involving v, by giving it a fresh row
+		// unless the old one has to be logged
+		if (marks > 0) {
+			for (int w = 0; w < rowWords; w++) {
+				long bits = neighbours[v][w];
+				while (bits != 0) {
+					setValue(v, (w << 6) + Long.numberOfTrailingZeros(bits), 0);
+					bits &= bits - 1;
+				}
 			}
-			// Clear as much of the last index as needed
-			if (endIndex != 0) {
-				int m = 0xFFFFFFFF << endIndex;
-				edges[endInt] &= m;
+			return;
+		}
+		edges[v] = new int[rowInts];
+		neighbours[v] = new long[rowWords];
+		owned[v] = true;
+		if (overflow != null) {
+			for (int i = 0; i < domainSize; i++) {
+				overflow.remove(v * domainSize + i);
 			}
-
 		}
-
-	}
-
-	private void setValue(int from, int to, int val) {
-		setValue(from,to, val, domainSize,edges);
-	}
-
-	/**
-	 * Add c many of an edge from from to to
-	 * 
-	 * @param from
-	 * @param to
-	 * @param c
-	 * @return True if the edge already exists
-	 */
-	public boolean addEdge(int from, int to, int c) {
-		numEdges += c;
-
-		int num = this.numEdges(from, to);
-		if (num == 0) {
-			numMultiEdges += c - 1;
-		} else {
-			numMultiEdges += c;
-		}
-
-		c += num;
-
-		setValue(from, to, c);
-		if (from != to) {
-			setValue(to, from, c);
-		}
-
-		return num != 0;
-	}
-
-	/**
-	 * Add an undirected edge from from to to
-	 * 
-	 * @param from
-	 *            Source
-	 * @param to
-	 *            Sink
-	 * @return True if the edge already exists
-	 */
-	public boolean addEdge(int from, int to) {
-		return addEdge(from, to, 1);
 	}
 
-	public boolean removeEdge(int from, int to, int c) {
-
-		int i = numEdges(from, to);
-		if (i == 0) {
-			return false;
-		}
-		if (i > c) {
-			// this is a multi-edge, so decrement count.
-			numMultiEdges -= c;
-			numEdges -= c;
-			setValue(from, to, i - c);
-			if (from != to) {
-				setValue(to, from, i - c);
+	@Override
+	protected void write(int from, int to, int val) {
+		if (val >= OVERFLOW) {
+			if (overflow == null) {
+				overflow = new HashMap<Integer, Integer>();
 			}
+			overflow.put(from * domainSize + to, val);
+			val = OVERFLOW;
+		} else if (overflow != null) {
+			overflow.remove(from * domainSize + to);
+		}
+		if (!owned[from]) {
+			edges[from] = edges[from].clone();
+			neighbours[from] = neighbours[from].clone();
+			owned[from] = true;
+		}
+		setValue(0, to, val, domainSize, edges[from]);
+		if (val == 0) {
+			neighbours[from][to >>> 6] &= ~(1L << to);
 		} else {
-			// set to zero
-			numEdges -= i;
-			numMultiEdges -= (i - 1);
-			setValue(from, to, 0);
-			if (from != to) {
-				setValue(to, from, 0);
-			}
-		}
-		return true;
-	}
-
-	public int removeAllEdges(int from, int to) {
-		// remove all edges "from--to"
-		int r = numEdges(from, to);
-		if (r != 0) {
-			numEdges -= r;
-			numMultiEdges -= (r - 1);
-			setValue(from, to, 0);
-			if (from != to) {
-				setValue(to, from, 0);
-			}
+			neighbours[from][to >>> 6] |= 1L << to;
 		}
-
-		return r;
 	}
 
 	/**
-	 * Remove an edge (only one in the case of a multi edge)
+	 * Write a cell of a packed matrix
 	 * 
-	 * @param from
-	 *            Source
-	 * @param to
-	 *            Sink
-	 * @return
+	 * @param val
+	 *            Must be less than 2^CELL_SIZE
 	 */
-	public boolean removeEdge(int from, int to) {
-		return removeEdge(from, to, 1);
-	}
-
-	public void remove(AdjacencyMatrix g) {
-		boolean done = false;
-		for (int i : g.vertices()) {
-			done = false;
-			out: while (!done) {
-				for (Pair<Integer, Integer> j : g.edges(i)) {
-					if (i >= j.first()) {
-						if (removeEdge(i, j.first(), j.second())) {
-							continue out;
-						}
-					}
-				}
-				done = true;
-			}
-		}
-	}
-
-	// Ok, this implementation is seriously inefficient!
-	// could use an indirection trick here as one solution?
-	//
-	// POST: vertex 'from' remains, whilst vertex 'to' is removed
-	void contractEdge(int from, int to) {
-		if (from == to) {
-			throw new RuntimeException("cannot contract a loop!");
-		}
-		for (Pair<Integer, Integer> i : edges(to)) {
-			if (i.first() == to) {
-				// is self loop
-				addEdge(from, from, i.second());
-			} else {
-				addEdge(from, i.first(), i.second());
-			}
-		}
-		
-		clear(to);
-		removeEdge(from, from,1);
-	}
-
-	public String toString() {
-		StringBuilder ss = new StringBuilder();
-		for (int i : vertices()) {
-			for (Pair<Integer, Integer> e : edges(i)) {
-				if (e.first() >= i || Debug.debug) {
-					ss = ss.append(i).append(" -> ").append(e.first()).append(" x").append(e.second()).append('\n');
-				}
-			}
-		}
-
-		return ss.toString();
-	}
-
 	public static void setValue(int from, int to, int val, int domainSize, int []vals) {
 		long startBit = domainSize * CELL_SIZE * from + CELL_SIZE * to;
 
@@ -445,29 +409,10 @@ public class AdjacencyMatrix {
 		}
 	}
 	
-	public int[] label(Label l){
-		int[] vals = new int[edges.length];
-		for(int i = 0 ; i < l.newDomain(); i++){
-			for(int j = 0 ; j< l.newDomain(); j++){
-				setValue(i,j,this.numEdges(l.oldName(i), l.oldName(j)),domainSize, vals);
-			}
-		}
-		return vals;
-	}
-	
 	public int hashCode(int[] l) {
 		return Hash.hashcode(l);
 	}
 
-	private class VertexIterable implements Iterable<Integer> {
-
-		@Override
-		public Iterator<Integer> iterator() {
-			return new VertexIterator(AdjacencyMatrix.this.vertices);
-		}
-
-	}
-
 	private class EdgeIterable implements Iterable<Pair<Integer, Integer>> {
 		private int vertex;
 
@@ -477,113 +422,87 @@ public class AdjacencyMatrix {
 
 		@Override
 		public Iterator<Pair<Integer, Integer>> iterator() {
-			return new EdgeIterator(AdjacencyMatrix.this.edges, vertex);
+			return new EdgeIterator(vertex);
 		}
 
 	}
 
-	public class EdgeIterator implements Iterator<Pair<Integer, Integer>> {
-		private int[] edges;
-		private Pair<Integer, Integer> next;
-
-		long startBit;
-		long endBit;
-
-		long currBit;
+	private class Cursor implements EdgeCursor {
+		int vertex;
+		int word;
+		long bits;
 		int dest;
 
-		public EdgeIterator(int[] edges, int vertex) {
-			this.edges = edges;
-			startBit = domainSize * CELL_SIZE * vertex;
-			endBit = domainSize * CELL_SIZE * (vertex + 1);
-
-			dest = 0;
-			currBit = startBit;
-			findNextEdge();
+		@Override
+		public void start(int v) {
+			vertex = v;
+			word = 0;
+			bits = neighbours[v][0];
 		}
 
 		/**
-		 * Goes through and sets next to be the next available edge if there is one
+		 * Move to the next neighbour, skipping a word of empty cells at a time
 		 */
-		private void findNextEdge() {
-			while (true) {
-				if (dest == domainSize) {
-					next = null;
-					return;
-				}
-
-				int startInt = (int) (currBit / 32);
-				int index = (int) (currBit % 32);
-				boolean overflow = (index + CELL_SIZE) > 32;
-
-				int ret;
-				if (overflow) {
-					long v = ((0xFFFFFFFFL &  edges[startInt])) | ((0xFFFFFFFFL & edges[startInt + 1]) << 32);
-					int m = (1 << CELL_SIZE) - 1;
-					ret = (int) ((v >> index) & m);
-				} else {
-					int v = edges[startInt];
-					int m = (1 << CELL_SIZE) - 1;
-					ret = (int) ((v >> index) & m);
-				}
-
-				currBit += CELL_SIZE;
-				if (ret != 0) {
-					next = new Pair<Integer, Integer>(dest++, ret);
-					return;
+		@Override
+		public boolean next() {
+			while (bits == 0) {
+				if (++word >= rowWords) {
+					return false;
 				}
-				dest += 1;
+				bits = neighbours[vertex][word];
 			}
+			dest = (word << 6) + Long.numberOfTrailingZeros(bits);
+			bits &= bits - 1;
+			return true;
 		}
 
 		@Override
-		public boolean hasNext() {
-			return next != null;
+		public int vertex() {
+			return dest;
 		}
 
 		@Override
-		public Pair<Integer, Integer> next() {
-			Pair<Integer, Integer> ret = next;
-			findNextEdge();
-			return ret;
+		public int count() {
+			return numEdges(vertex, dest);
 		}
+	}
 
-		@Override
-		public void remove() {
-			throw new UnsupportedOperationException("Remove not implemented");
+	public class EdgeIterator implements Iterator<Pair<Integer, Integer>> {
+		private Pair<Integer, Integer> next;
+		private Cursor cursor = new Cursor();
 
+		public EdgeIterator(int vertex) {
+			cursor.start(vertex);
+			findNextEdge();
 		}
 
-	}
-
-	private class VertexIterator implements Iterator<Integer> {
-		private int[] vertices;
-		private int nextIndex;
-
-		public VertexIterator(int[] vertices) {
-			this.vertices = vertices;
-			if (numVertices == 0) {
-				nextIndex = -1;
+		/**
+		 * Goes through and sets next to be the next available edge if there is one
+		 */
+		private void findNextEdge() {
+			if (cursor.next()) {
+				next = new Pair<Integer, Integer>(cursor.vertex(), cursor.count());
 			} else {
-				nextIndex = startVertex;
+				next = null;
 			}
 		}
 
 		@Override
 		public boolean hasNext() {
-			return nextIndex != -1;
+			return next != null;
 		}
 
 		@Override
-		public Integer next() {
-			int ret = nextIndex;
-			nextIndex = vertices[nextIndex];
+		public Pair<Integer, Integer> next() {
+			Pair<Integer, Integer> ret = next;
+			findNextEdge();
 			return ret;
 		}
 
 		@Override
 		public void remove() {
 			throw new UnsupportedOperationException("Remove not implemented");
+
 		}
 
 	}
@@ -926,6 +845,63 @@ public class AdjacencyMatrix {
 				}
 			}
 		}
-		
+				System.out.println("-----Testing multiplicities beyond a cell");
+		g = new AdjacencyMatrix(3);
+		g.addEdge(0, 1, 40);
+		g.addEdge(1, 2, 1);
+		g.addEdge(0, 2, 30);
+		g.addEdge(0, 1, 40);
+		if (g.numEdges(0, 1) != 80 || g.numEdges(1, 0) != 80 || g.numEdges(1, 2) != 1) {
+			throw new RuntimeException("overflow " + g.numEdges(0, 1));
+		}
+		g.contractEdge(0, 2);
+		s = g.toString();
+		target = "0 -> 0 x29\n0 -> 1 x81\n";
+		if (!s.equals(target)) {
+			throw new RuntimeException("overflow contraction " + s);
+		}
+		g2 = new AdjacencyMatrix(g);
+		g.removeEdge(0, 1, 20);
+		if (g.numEdges(0, 1) != 61 || g.numEdges != 90 || g2.numEdges(1, 0) != 81) {
+			throw new RuntimeException("overflow removal " + g.numEdges(0, 1));
+		}
+		g2.clear(1);
+		if (g2.numEdges != 29 || !g2.toString().equals("0 -> 0 x29\n")) {
+			throw new RuntimeException("overflow clear");
+		}
+		// g2 is left with an empty overflow table, which is the same as none
+		AdjacencyMatrix g3 = new AdjacencyMatrix(3);
+		g3.addEdge(0, 0, 29);
+		if (!g2.equals(g3) || !g3.equals(g2)) {
+			throw new RuntimeException("overflow table equality");
+		}
+		System.out.println("-----Testing undo");
+		g = new AdjacencyMatrix(5);
+		for (int i = 0; i < 5; i++) {
+			g.addEdge(i, (i + 1) % 5, i + 1);
+			g.addEdge(i, (i + 2) % 5);
+		}
+		g.addEdge(0, 1, 70);
+		g2 = new AdjacencyMatrix(g);
+		int outer = g.mark();
+		g.removeEdge(0, 1, 3);
+		g.contractEdge(2, 3);
+		int inner = g.mark();
+		g.clear(0);
+		g.removeAllEdges(1, 4);
+		g.undo(inner);
+		g.contractEdge(1, 4);
+		g.clear(2);
+		g.undo(outer);
+		if (!g.equals(g2) || !g.toString().equals(g2.toString()) || g.numVertices() != 5 || g.numMultiEdges != g2.numMultiEdges) {
+			throw new RuntimeException("undo\n" + g + "\n" + g2);
+		}
+		count = 0;
+		for (int i : g.vertices()) {
+			count += i;
+		}
+		if (count != 10) {
+			throw new RuntimeException("undo vertices");
+		}
 	}
 }
@@ -1,36 +1,215 @@
 package graph;
 
-import java.util.ArrayList;
-import java.util.List;
-
-import util.Triple;
+import java.util.Arrays;
 
+/**
+ * Tarjan's search for the articulations and biconnected components of a graph. The search keeps its own stack rather than recursing, so
+ * a long path cannot overflow the call stack, and all its work arrays are kept between calls and only ever grow. A BCDat should
+ * therefore be reused, but only by one thread and one search at a time.
+ *
+ * The graph is given as its vertices, its domain size and a cursor over its edges, so the same search serves both Graph and
+ * SpanningGraph. The graph must not change during a search.
+ */
 public class BCDat {
-	public int vindex;
-	public List<Boolean> visited;
-	public List<Integer> lowlink;
-	public List<Integer> dfsnum;
-	public List<Triple<Integer, Integer, Integer>> cstack;
+	/**
+	 * Receives the biconnected components found by extract()
+	 */
+	public interface Components {
+		/**
+		 * Called once for each biconnected component. Its edges are from[i] - to[i] with multiplicity count[i], for start <= i < end.
+		 * The arrays belong to the search, and are only valid until this returns.
+		 *
+		 * @param from
+		 *            One end of each edge
+		 * @param to
+		 *            The other end of each edge
+		 * @param count
+		 *            The number of edges between the two ends
+		 * @param start
+		 *            The first edge of the component
+		 * @param end
+		 *            One past the last edge of the component
+		 */
+		public void component(int[] from, int[] to, int[] count, int start, int end);
+	}
 
-	public BCDat() {
-		vindex = 0;
-		visited = new ArrayList<Boolean>();
-		lowlink = new ArrayList<Integer>();
-		dfsnum = new ArrayList<Integer>();
-		cstack = new ArrayList<Triple<Integer, Integer, Integer>>();
+	private int vindex;
+	private int nartics;
+	private int ncomponents;
+	// the order in which each vertex was reached, or -1 if it has not been
+	private int[] dfsnum = new int[0];
+	private int[] lowlink = new int[0];
+
+	// one frame for each vertex on the current path: the vertex, where it was reached from, the next of its edges to look at, one
+	// past its last edge and the height of the component stack before the edge to its current child was pushed
+	private int[] vertex = new int[0];
+	private int[] parent = new int[0];
+	private int[] next = new int[0];
+	private int[] end = new int[0];
+	private int[] mark = new int[0];
+
+	// the edges of the vertices on the path, frame after frame
+	private int[] targets = new int[16];
+	private int[] counts = new int[16];
+
+	// the edges of the components not yet finished
+	private int[] cfrom = new int[16];
+	private int[] cto = new int[16];
+	private int[] ccount = new int[16];
+	private int csize;
+
+	/**
+	 * Count the articulations and components of a graph
+	 *
+	 * @param domainSize
+	 *            One more than the largest vertex
+	 * @param vertices
+	 *            The vertices of the graph
+	 * @param c
+	 *            A cursor over its edges
+	 */
+	public void check(int domainSize, Iterable<Integer> vertices, EdgeCursor c) {
+		search(domainSize, vertices, c, null);
+	}
+
+	/**
+	 * Find the biconnected components of a graph. Bridges are not reported.
+	 *
+	 * @param domainSize
+	 *            One more than the largest vertex
+	 * @param vertices
+	 *            The vertices of the graph
+	 * @param c
+	 *            A cursor over its edges
+	 * @param out
+	 *            Is given each component as it is found
+	 */
+	public void extract(int domainSize, Iterable<Integer> vertices, EdgeCursor c, Components out) {
+		search(domainSize, vertices, c, out);
 	}
 
-	public void reset(int v) {
+	/**
+	 * The result of the last search, with one for each time a vertex separates a child's subtree from the rest and two for each
+	 * bridge. A graph with at least one edge is biconnected exactly when this is one and it has one component.
+	 *
+	 * @return The articulation count
+	 */
+	public int nartics() {
+		return nartics;
+	}
+
+	/**
+	 * @return The number of components found by the last search
+	 */
+	public int ncomponents() {
+		return ncomponents;
+	}
+
+	private void search(int domainSize, Iterable<Integer> vertices, EdgeCursor c, Components out) {
+		if (dfsnum.length < domainSize) {
+			dfsnum = new int[domainSize];
+			lowlink = new int[domainSize];
+			vertex = new int[domainSize];
+			parent = new int[domainSize];
+			next = new int[domainSize];
+			end = new int[domainSize];
+			mark = new int[domainSize];
+		}
+		Arrays.fill(dfsnum, 0, domainSize, -1);
 		vindex = 0;
-		visited = new ArrayList<Boolean>();
-		lowlink = new ArrayList<Integer>();
-		dfsnum = new ArrayList<Integer>();
-		cstack = new ArrayList<Triple<Integer, Integer, Integer>>();
-		for (int i = 0; i < v; i++) {
-			visited.add(false);
-			lowlink.add(-1);
-			dfsnum.add(-1);
-//			cstack.add(new Triple<Integer,Integer,Integer>(-1,-1,-1));
+		nartics = 0;
+		ncomponents = 0;
+		csize = 0;
+		for (int i : vertices) {
+			if (dfsnum[i] < 0) {
+				ncomponents++;
+				search(i, c, out);
+			}
+		}
+	}
+
+	private void search(int root, EdgeCursor c, Components out) {
+		int depth = 0;
+		int top = enter(root, root, 0, 0, c);
+		while (true) {
+			int v = vertex[depth];
+			if (next[depth] < end[depth]) {
+				int i = next[depth]++;
+				int w = targets[i];
+				if (dfsnum[w] < 0) {
+					if (out != null) {
+						mark[depth] = csize;
+						push(v, w, counts[i]);
+					}
+					top = enter(w, v, ++depth, top, c);
+				} else if (w != parent[depth] && dfsnum[v] > dfsnum[w]) {
+					// this is a real back edge ...
+					lowlink[v] = Math.min(lowlink[v], dfsnum[w]);
+					// which means we're in a biconnected component ...
+					if (out != null) {
+						push(v, w, counts[i]);
+					}
+				}
+			} else {
+				// v is finished, so its edges can go
+				top = depth > 0 ? end[depth - 1] : 0;
+				if (--depth < 0) {
+					return;
+				}
+				int u = vertex[depth];
+				lowlink[u] = Math.min(lowlink[u], lowlink[v]);
+				if (lowlink[v] == dfsnum[u]) {
+					// u is an articulation point separating
+					// the component containing v from others.
+					if (out != null) {
+						out.component(cfrom, cto, ccount, mark[depth], csize);
+						csize = mark[depth];
+					} else {
+						nartics++;
+					}
+				} else if (lowlink[v] > dfsnum[u]) {
+					// u is not in a biconnected component with v
+					if (out != null) {
+						csize--;
+					} else {
+						nartics += 2;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Push a frame for a vertex, along with its edges
+	 *
+	 * @return The new height of the edge stack
+	 */
+	private int enter(int v, int u, int depth, int top, EdgeCursor c) {
+		dfsnum[v] = vindex;
+		lowlink[v] = vindex++;
+		vertex[depth] = v;
+		parent[depth] = u;
+		next[depth] = top;
+		for (c.start(v); c.next();) {
+			if (top == targets.length) {
+				targets = Arrays.copyOf(targets, top * 2);
+				counts = Arrays.copyOf(counts, top * 2);
+			}
+			targets[top] = c.vertex();
+			counts[top++] = c.count();
+		}
+		end[depth] = top;
+		return top;
+	}
+
+	private void push(int from, int to, int count) {
+		if (csize == cfrom.length) {
+			cfrom = Arrays.copyOf(cfrom, csize * 2);
+			cto = Arrays.copyOf(cto, csize * 2);
+			ccount = Arrays.copyOf(ccount, csize * 2);
 		}
+		cfrom[csize] = from;
+		cto[csize] = to;
+		ccount[csize++] = count;
 	}
-}
\ No newline at end of file
+}
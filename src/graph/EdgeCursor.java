@@ -0,0 +1,39 @@
+package graph;
+
+/**
+ * Walks the edges from one vertex without allocating, as an alternative to iterating over edges(v). A cursor is obtained once from
+ * the graph and can then be restarted at any vertex, for as long as the graph is not modified.
+ *
+ * <pre>
+ * EdgeCursor c = graph.cursor();
+ * for (c.start(v); c.next();) {
+ * 	... c.vertex() ... c.count() ...
+ * }
+ * </pre>
+ */
+public interface EdgeCursor {
+	/**
+	 * Move to before the first edge from a vertex
+	 *
+	 * @param v
+	 *            The source of the edges
+	 */
+	public void start(int v);
+
+	/**
+	 * Move to the next edge
+	 *
+	 * @return False if there are no more edges
+	 */
+	public boolean next();
+
+	/**
+	 * @return The other end of the current edge
+	 */
+	public int vertex();
+
+	/**
+	 * @return The number of edges between the two ends of the current edge
+	 */
+	public int count();
+}
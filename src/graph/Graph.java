@@ -1,34 +1,136 @@
 package graph;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import util.GraphKey;
 import util.Isomorphism;
 import util.Label;
 import util.Pair;
 import util.Triple;
 
+/**
+ * A multigraph, along with what is known about its biconnectivity. The number of articulations and components are only worked out
+ * when they are asked for, and not after every change, since a graph is often changed several times before they are needed.
+ *
+ * The edges are kept in an AdjacencyMatrix, or in an AdjacencyArray when the graph is so sparse that a matrix would waste most of its
+ * space. The choice is made again whenever the graph is copied, contracted or split, since contraction makes graphs denser.
+ *
+ * Vertices keep their numbers as the graph is changed, so the domain size does not shrink as vertices are contracted away. The blocks
+ * split off by extractBiconnectedComponents() are numbered afresh, and compact() renumbers a graph once most of its domain is dead, so
+ * that the space and time taken by a graph follow its live vertices.
+ */
 public class Graph {
 
-	private AdjacencyMatrix graph;
+	private Adjacency graph;
 	private int nartics;
 	private int ncomponents;
-	private int[] label;
+	/**
+	 * True if nartics and ncomponents are up to date
+	 */
+	private boolean known;
+	private GraphKey key;
+	private int fingerprint;
+	private boolean fingerprinted;
+	/**
+	 * Takes the vertices of the graph this was extracted from to the ones here, so that removeGraphs() can find them. Only set on
+	 * biconnected components.
+	 */
+	private Label origin;
+	/**
+	 * What was known at each outstanding mark
+	 */
+	private List<Saved> saved;
+	/**
+	 * A graph is moved into an AdjacencyArray once a matrix would take more than this many times the space, and back into a matrix
+	 * once that would take no more space. The gap stops a graph near the boundary from being converted back and forth.
+	 */
+	private static final int SPARSE_RATIO = 4;
 
 	public Graph(int i) {
-		graph = new AdjacencyMatrix(i);
+		graph = empty(i, 0);
 		nartics = 0;
 		ncomponents = 0;
+		known = true;
 	}
 
-	public Graph(AdjacencyMatrix g) {
-		graph = new AdjacencyMatrix(g);
+	public Graph(Adjacency g) {
+		graph = g.copy();
 		nartics = 0;
 		ncomponents = 0;
-		checkBiConnectivity();
+		known = false;
+		adapt();
 	}
 
 	public Graph(Graph g) {
-		this(g.graph);
+		graph = g.graph.copy();
+		nartics = g.nartics;
+		ncomponents = g.ncomponents;
+		known = g.known;
+		// keys are immutable, so it can be shared
+		key = g.key;
+		fingerprint = g.fingerprint;
+		fingerprinted = g.fingerprinted;
+		adapt();
+	}
+
+	/**
+	 * An empty matrix or arrays, whichever suits a graph of the given size
+	 */
+	private static Adjacency empty(int n, int underlyingEdges) {
+		if (AdjacencyMatrix.estimate(n) > SPARSE_RATIO * AdjacencyArray.estimate(n, underlyingEdges)) {
+			return new AdjacencyArray(n);
+		}
+		return new AdjacencyMatrix(n);
+	}
+
+	/**
+	 * Renumber the vertices 0..numVertices()-1, in the same order, if at least half of the domain is no longer in use. This changes the
+	 * names of the vertices, so it must only be called when nothing else is holding on to them, or when whatever is will first undo
+	 * back to a mark taken before. The renumbered edges go into a new matrix or arrays, and the old one is kept, untouched, by the
+	 * outstanding marks, so undoing to any of them brings back the old names.
+	 * 
+	 * @return True if the graph was renumbered
+	 */
+	public boolean compact() {
+		int n = graph.numVertices();
+		if (2 * n > graph.domainSize()) {
+			return false;
+		}
+		Label l = new Label(n, graph.domainSize());
+		int i = 0;
+		for (int v : graph.vertices()) {
+			l.set(v, i++);
+		}
+		Adjacency h = empty(n, graph.numUnderlyingEdges());
+		EdgeCursor c = graph.cursor();
+		for (int v : graph.vertices()) {
+			for (c.start(v); c.next();) {
+				if (v <= c.vertex()) {
+					h.addEdge(l.newName(v), l.newName(c.vertex()), c.count());
+				}
+			}
+		}
+		// the key and biconnectivity do not depend on the names
+		graph = h;
+		return true;
+	}
+
+	/**
+	 * Move the edges into whichever of a matrix or arrays suits the density of the graph. As in compact(), the old one is kept,
+	 * untouched, by any outstanding marks, and undoing to them puts it back.
+	 */
+	private void adapt() {
+		long dense = AdjacencyMatrix.estimate(graph.domainSize());
+		long sparse = AdjacencyArray.estimate(graph.domainSize(), graph.numUnderlyingEdges());
+		if (graph instanceof AdjacencyMatrix) {
+			if (dense > SPARSE_RATIO * sparse) {
+				graph = new AdjacencyArray(graph);
+			}
+		} else if (dense <= sparse) {
+			graph = new AdjacencyMatrix(graph);
+		}
 	}
 
 	public void addEdge(int from, int to) {
@@ -36,9 +138,10 @@ public class Graph {
 	}
 
 	public void addEdge(int from, int to, int count) {
-		label = null;
+		key = null;
+		fingerprinted = false;
 		graph.addEdge(from, to, count);
-		checkBiConnectivity();
+		known = false;
 	}
 
 	public Iterable<Integer> vertices() {
@@ -46,10 +149,11 @@ public class Graph {
 	}
 
 	public int removeAllEdges(int from, int to) {
-		label = null;
+		key = null;
+		fingerprinted = false;
 		int r = graph.removeAllEdges(from, to);
 		if (r > 0 && from != to) {
-			checkBiConnectivity();
+			known = false;
 		}
 		return r;
 	}
@@ -59,6 +163,7 @@ public class Graph {
 	}
 
 	public boolean isMulticycle() {
+		biconnectivity();
 		return nartics == 1 && graph.numUnderlyingEdges() == graph.numVertices();
 	}
 
@@ -66,36 +171,124 @@ public class Graph {
 		return graph.edges(v);
 	}
 
+	/**
+	 * @see Adjacency#cursor()
+	 */
+	public EdgeCursor cursor() {
+		return graph.cursor();
+	}
+
+	/**
+	 * Contract an edge. If the graph is known to be biconnected and has at least four vertices, then the contracted graph is
+	 * biconnected exactly when removing both ends of the edge leaves the rest connected, which is much cheaper to check than finding
+	 * the articulations again.
+	 */
 	public void contractEdge(Triple<Integer, Integer, Integer> edge) {
-		label = null;
+		key = null;
+		fingerprinted = false;
+		boolean stays = known && isBiconnected() && graph.numVertices() >= 4 && graph.connectedWithout(edge.first, edge.second);
 		graph.removeEdge(edge.first, edge.second, edge.third);
 		graph.contractEdge(edge.first, edge.second);
-		checkBiConnectivity();
+		if (stays) {
+			nartics = 1;
+			ncomponents = 1;
+		} else {
+			known = false;
+		}
+		adapt();
 	}
 
 	public boolean removeEdge(Triple<Integer, Integer, Integer> e) {
-		label = null;
+		key = null;
+		fingerprinted = false;
 		if (graph.removeEdge(e.first, e.second, e.third)) {
 			if (e.first != e.second) {
 				// by removing an edge, we may have disconnected the
 				// graph ...
-				checkBiConnectivity();
+				known = false;
 			}
 			return true;
 		}
 		return false;
 	}
 
+	/**
+	 * Start recording changes to this graph, so that they can be undone
+	 * 
+	 * @return The mark to pass to undo()
+	 * @see Adjacency#mark()
+	 */
+	public int mark() {
+		if (saved == null) {
+			saved = new ArrayList<Saved>();
+		}
+		saved.add(new Saved(this));
+		return saved.size() - 1;
+	}
+
+	/**
+	 * Put this graph back as it was when a mark was taken
+	 * 
+	 * @param mark
+	 *            A mark returned by mark()
+	 */
+	public void undo(int mark) {
+		Saved s = saved.get(mark);
+		while (saved.size() > mark) {
+			saved.remove(saved.size() - 1);
+		}
+		// compact() may have moved on to another matrix since
+		graph = s.graph;
+		graph.undo(s.mark);
+		nartics = s.nartics;
+		ncomponents = s.ncomponents;
+		known = s.known;
+		key = s.key;
+		fingerprint = s.fingerprint;
+		fingerprinted = s.fingerprinted;
+	}
+
+	/**
+	 * Everything about a graph which is not in its matrix, as it was when a mark was taken
+	 */
+	private static final class Saved {
+		final Adjacency graph;
+		final int mark;
+		final int nartics;
+		final int ncomponents;
+		final boolean known;
+		final GraphKey key;
+		final int fingerprint;
+		final boolean fingerprinted;
+
+		Saved(Graph g) {
+			graph = g.graph;
+			mark = g.graph.mark();
+			nartics = g.nartics;
+			ncomponents = g.ncomponents;
+			known = g.known;
+			key = g.key;
+			fingerprint = g.fingerprint;
+			fingerprinted = g.fingerprinted;
+		}
+	}
+
 	public boolean isMultitree() {
 		return graph.numUnderlyingEdges() < graph.numVertices();
 	}
 
 	public void removeGraphs(List<Graph> graphs) {
-		label = null;
+		key = null;
+		fingerprinted = false;
 		// finally, remove all edges present in the biconnects
 		// how could this be optimised a little?
 		for (int i = 0; i != graphs.size(); ++i) {
-			graph.remove(graphs.get(i).graph);
+			Graph g = graphs.get(i);
+			if (g.origin != null) {
+				graph.remove(g.graph, g.origin);
+			} else {
+				graph.remove(g.graph);
+			}
 		}
 		// could remove any isolated vertices here,
 		// but I don't think it's necessary for the tutte
@@ -103,135 +296,88 @@ public class Graph {
 
 		nartics = 0; // this is a tree by definition now!!!!!
 		ncomponents = 99; // not sure how many there are ...
+		known = true;
+		adapt();
 	}
 
 	public boolean isBiconnected() {
+		biconnectivity();
 		return ncomponents == 1 && nartics == 1;
 	}
 
-	private BCDat datae = new BCDat();
+	/**
+	 * The search state for each thread, which is reused by every graph that thread works on
+	 */
+	private static final ThreadLocal<BCDat> bcdat = new ThreadLocal<BCDat>() {
+		@Override
+		protected BCDat initialValue() {
+			return new BCDat();
+		}
+	};
 
-	public void extractBiconnectedComponents(List<Graph> bcs) { // was retree
+	public void extractBiconnectedComponents(final List<Graph> bcs) { // was retree
 		// Now, we traverse the entire graph and extract any and all biconnected components
-
-		datae.reset(graph.domainSize());
-
-		// now, check for connectedness
-		for (int i : graph.vertices()) {
-			if (!datae.visited.get(i)) {
-				// dfs search to identify component roots
-				// System.out.println("DEBUG --- Going in the loop");
-				extract_biconnects(i, i, bcs, datae);
+		bcdat.get().extract(graph.domainSize(), graph.vertices(), graph.cursor(), new BCDat.Components() {
+			@Override
+			public void component(int[] from, int[] to, int[] count, int start, int end) {
+				bcs.add(extract_biconnect(from, to, count, start, end));
 			}
+		});
+	}
+
+	/**
+	 * Make a graph of a biconnected component, with its vertices numbered 0..k-1 in the same order as here
+	 */
+	private Graph extract_biconnect(int[] from, int[] to, int[] count, int start, int end) {
+		int[] vs = new int[2 * (end - start)];
+		int k = 0;
+		for (int i = start; i < end; i++) {
+			vs[k++] = from[i];
+			vs[k++] = to[i];
 		}
-		// System.out.println("DEGUG --- " + bcs.size());
-	}
-
-	private void extract_biconnects(int u, int v, List<Graph> bcs, BCDat data) {
-		// traverse edge tail->head
-		data.dfsnum.set(v, data.vindex);
-		data.visited.set(v, true);
-		data.lowlink.set(v, data.vindex++);
-		// now, consider edges
-		for (Pair<Integer, Integer> i : graph.edges(v)) {
-			int w = i.first();
-			// System.out.println("DEBUG --- First Inner loop " + w + " " + v);
-			Triple<Integer, Integer, Integer> e = new Triple<Integer, Integer, Integer>(v, w, i.second());
-
-			if (!data.visited.get(w)) {
-				// System.out.println("DEBUG --- Second inner loop");
-				data.cstack.add(e);
-				extract_biconnects(v, w, bcs, data);
-				data.lowlink.set(v, Math.min(data.lowlink.get(v), data.lowlink.get(w)));
-				if (data.lowlink.get(w) == data.dfsnum.get(v)) {
-					// System.out.println("DEBUG -- Adding to list");
-					// v is an articulation point separating
-					// the component containing w from others.
-					bcs.add(extract_biconnect(e, data));
-				} else if (data.lowlink.get(w) > data.dfsnum.get(v)) {
-					// v is not in a biconnected component with w
-					data.cstack.remove(data.cstack.size() - 1);
-					// System.out.println("DEBUG --- Removing from cstack");
-				}
-			} else if (w != u && data.dfsnum.get(v) > data.dfsnum.get(w)) {
-				// this is a back edge ...
-				data.lowlink.set(v, Math.min(data.lowlink.get(v), data.dfsnum.get(w)));
-				// which means we're in a biconnected component ...
-				data.cstack.add(e);
+		Arrays.sort(vs);
+		int n = 0;
+		for (int i = 0; i < k; i++) {
+			if (n == 0 || vs[i] != vs[n - 1]) {
+				vs[n++] = vs[i];
 			}
 		}
-	}
+		Label l = new Label(n, graph.domainSize());
+		for (int i = 0; i < n; i++) {
+			l.set(vs[i], i);
+		}
 
-	private Graph extract_biconnect(Triple<Integer, Integer, Integer> e, BCDat data) {
-		Graph g = new Graph(graph.domainSize());
-		Triple<Integer, Integer, Integer> c = new Triple<Integer, Integer, Integer>(0, 0, 0);
-		do {
-			c = data.cstack.get(data.cstack.size() - 1);
+		Graph g = new Graph(n);
+		for (int i = end - 1; i >= start; i--) {
 			// in what follows, I use g.graph to avoid rechecking
 			// biconnectivity every time...
-			g.graph.addEdge(c.first, c.second, c.third);
-			data.cstack.remove(data.cstack.size() - 1);
-		} while (c != e);
-
-		// finally, remove any dumb vertices!
-		for (int i = 0; i < graph.domainSize(); ++i) {
-			if (g.numEdges(i) == 0) {
-				g.graph.clear(i);
-			}
+			g.graph.addEdge(l.newName(from[i]), l.newName(to[i]), count[i]);
 		}
 
-		g.checkBiConnectivity();
-
+		g.origin = l;
 		g.nartics = 1; // since this is a biconnected component!
 		g.ncomponents = 1;
+		g.known = true;
+		g.adapt();
 
 		return g;
 	}
 
-	private BCDat datac = new BCDat();
-
-	private void checkBiConnectivity() { // was retree
-		// reset visited information
-
-		datac.reset(graph.domainSize());
-
-		nartics = 0;
-		ncomponents = 1;
-		// dfs search to identify component roots
-		biconnect(graph.vertices().iterator().next(), graph.vertices().iterator().next(), datac);
-		// now, check for connectedness
-		for (int i : graph.vertices()) {
-			if (!datac.visited.get(i)) {
-				biconnect(i, i, datac);
-				ncomponents++;
-			}
+	/**
+	 * Bring nartics and ncomponents up to date, if they are not already
+	 */
+	private void biconnectivity() {
+		if (!known) {
+			checkBiConnectivity();
 		}
 	}
 
-	private void biconnect(int u, int v, BCDat data) {
-		// traverse edge tail->head
-		data.dfsnum.set(v, data.vindex);
-		data.visited.set(v, true);
-		data.lowlink.set(v, data.vindex++);
-		// now, consider edges
-		for (Pair<Integer, Integer> i : graph.edges(v)) {
-			int w = i.first();
-			if (!data.visited.get(w)) {
-				biconnect(v, w, data);
-				data.lowlink.set(v, Math.min(data.lowlink.get(v), data.lowlink.get(w)));
-				if (data.lowlink.get(w) == data.dfsnum.get(v)) {
-					// v is an articulation point separating
-					// the component containing w from others.
-					nartics++;
-				} else if (data.lowlink.get(w) > data.dfsnum.get(v)) {
-					// v is not in an bicomp with w
-					nartics += 2;
-				}
-			} else if (u != w && data.dfsnum.get(v) > data.dfsnum.get(w)) {
-				// this is a real back edge ...
-				data.lowlink.set(v, Math.min(data.lowlink.get(v), data.dfsnum.get(w)));
-			}
-		}
+	private void checkBiConnectivity() { // was retree
+		BCDat data = bcdat.get();
+		data.check(graph.domainSize(), graph.vertices(), graph.cursor());
+		nartics = data.nartics();
+		ncomponents = data.ncomponents();
+		known = true;
 	}
 
 	/**
@@ -241,8 +387,10 @@ public class Graph {
 	 *            The vertex to remove
 	 */
 	public void clear(int vertex) {
-		label = null;
+		key = null;
+		fingerprinted = false;
 		graph.clear(vertex);
+		known = false;
 	}
 
 	/**
@@ -279,16 +427,73 @@ public class Graph {
 		return graph.label(l);
 	}
 	
-	public int hashCode() {
-		if(label == null){
-			this.label = Isomorphism.canonicalLabel(this);
+	/**
+	 * The canonical form of this graph, which is computed once and kept until the graph is next modified
+	 * 
+	 * @return Key which is equal for all isomorphic graphs
+	 */
+	public GraphKey key() {
+		if (key == null) {
+			key = new GraphKey(this, Isomorphism.canonicalLabelling(this));
+		}
+		return key;
+	}
+
+	/**
+	 * A cheap isomorphism invariant made from the numbers of vertices, edges and multiedges and the sorted degree and multiplicity
+	 * sequences. Isomorphic graphs have equal fingerprints, but graphs with equal fingerprints need not be isomorphic. It is kept until
+	 * the graph is next modified.
+	 * 
+	 * @return The fingerprint
+	 */
+	public int fingerprint() {
+		if (!fingerprinted) {
+			int n = graph.numVertices();
+			int[] degrees = new int[n];
+			int[] underlying = new int[n];
+			int[] multiplicities = new int[graph.numEdges()];
+			int i = 0, m = 0, total = 0;
+			EdgeCursor c = graph.cursor();
+			for (int v : graph.vertices()) {
+				for (c.start(v); c.next();) {
+					int count = c.count();
+					degrees[i] += count;
+					underlying[i]++;
+					if (v <= c.vertex()) {
+						multiplicities[m++] = count;
+						total += count;
+					}
+				}
+				i++;
+			}
+			Arrays.sort(degrees);
+			Arrays.sort(underlying);
+			Arrays.sort(multiplicities, 0, m);
+
+			int[] vals = new int[3 + 2 * n + m];
+			// the number of vertices, edges and underlying edges, then the
+			// sorted degrees, underlying degrees and edge multiplicities
+			vals[0] = n;
+			vals[1] = total;
+			vals[2] = m;
+			System.arraycopy(degrees, 0, vals, 3, n);
+			System.arraycopy(underlying, 0, vals, 3 + n, n);
+			System.arraycopy(multiplicities, 0, vals, 3 + 2 * n, m);
+			fingerprint = Hash.hashcode(vals);
+			fingerprinted = true;
 		}
-		return graph.hashCode(label);
+		return fingerprint;
+	}
+
+	/**
+	 * The fingerprint, so that graphs can be hashed without being labelled
+	 */
+	public int hashCode() {
+		return fingerprint();
 	}
 
 	public boolean equals(Object o) {
 		if (o instanceof Graph) {
-			// return this.graph.equals(((Graph) o).graph);
 			Graph g = (Graph) o;
 
 			if (g.numEdges() != this.numEdges()) {
@@ -297,22 +502,10 @@ public class Graph {
 			if (g.graph.numMultiedges() != this.graph.numMultiedges()) {
 				return false;
 			}
-
-			if (this.label == null) {
-				this.label = Isomorphism.canonicalLabel(this);
-			}
-			if (g.label == null) {
-				g.label = Isomorphism.canonicalLabel(g);
-			}
-
-			for (int i = 0; i < g.label.length; i++) {
-						int myEdges = this.label[i];
-						int gEdges = g.label[i];
-						if (myEdges != gEdges) {
-							return false;
-						}
+			if (g.fingerprint() != this.fingerprint()) {
+				return false;
 			}
-			return true;
+			return key().equals(g.key());
 		}
 		return false;
 	}
@@ -328,4 +521,73 @@ public class Graph {
 	public int numEdges(int v, int i) {
 		return graph.numEdges(v, i);
 	}
+
+	/**
+	 * @see Adjacency#neighbours(int, long[])
+	 */
+	public void neighbours(int v, long[] bits) {
+		graph.neighbours(v, bits);
+	}
+
+	/**
+	 * @see Adjacency#row(int, int[])
+	 */
+	public void row(int v, int[] row) {
+		graph.row(v, row);
+	}
+
+	/**
+	 * Count the spanning trees of K7 by deleting and contracting edges in place under marks, as BitTutte does by default, compacting
+	 * at every step, and check that the domain shrinks on the way down and that the graph comes back unchanged
+	 */
+	public static void main(String args[]) {
+		Graph g = new Graph(7);
+		for (int i = 0; i < 7; i++) {
+			for (int j = i + 1; j < 7; j++) {
+				g.addEdge(i, j);
+			}
+		}
+		String before = g.toString();
+		int[] smallest = { g.domainSize() };
+		long trees = spanningTrees(g, smallest);
+		if (trees != 16807) {
+			throw new RuntimeException("K7 has 16807 spanning trees, not " + trees);
+		}
+		if (smallest[0] > 1) {
+			throw new RuntimeException("The domain never shrank below " + smallest[0]);
+		}
+		if (g.domainSize() != 7 || !g.toString().equals(before)) {
+			throw new RuntimeException("Undo did not bring back the graph:\n" + g);
+		}
+		System.out.println("Compacted under marks down to a domain of " + smallest[0]);
+	}
+
+	private static long spanningTrees(Graph g, int[] smallest) {
+		g.compact();
+		if (2 * g.numVertices() <= g.domainSize() && g.domainSize() > 1) {
+			throw new RuntimeException("Not compacted: " + g.numVertices() + " vertices in a domain of " + g.domainSize());
+		}
+		smallest[0] = Math.min(smallest[0], g.domainSize());
+		if (g.numEdges() == 0) {
+			return g.numVertices() == 1 ? 1 : 0;
+		}
+		Triple<Integer, Integer, Integer> edge = null;
+		EdgeCursor c = g.cursor();
+		for (int v : g.vertices()) {
+			c.start(v);
+			if (c.next()) {
+				edge = new Triple<Integer, Integer, Integer>(v, c.vertex(), c.count());
+				break;
+			}
+		}
+		int mark = g.mark();
+		g.removeEdge(edge);
+		long r = spanningTrees(g, smallest);
+		g.undo(mark);
+		mark = g.mark();
+		g.contractEdge(edge);
+		r += edge.third * spanningTrees(g, smallest);
+		g.undo(mark);
+		return r;
+	}
 }
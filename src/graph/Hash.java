@@ -1,86 +1,90 @@
 package graph;
 
-import util.Triple;
-
 public class Hash {
 
 	public static int rot(int x, int k) {
 		return (x << k) | (x >> (32 - k));
 	}
 
-	public static Triple<Integer, Integer, Integer> mix(Triple<Integer, Integer, Integer> vals) {
-		vals.first -= vals.third;
-		vals.first ^= rot(vals.third, 4);
-		vals.third += vals.second;
-
-		vals.second -= vals.first;
-		vals.second ^= rot(vals.first, 6);
-		vals.first += vals.third;
-
-		vals.third -= vals.second;
-		vals.third ^= rot(vals.second, 8);
-		vals.second += vals.first;
-
-		vals.first -= vals.third;
-		vals.first ^= rot(vals.third, 16);
-		vals.third += vals.second;
-
-		vals.second -= vals.first;
-		vals.second ^= rot(vals.first, 19);
-		vals.first += vals.third;
-
-		vals.third -= vals.second;
-		vals.third ^= rot(vals.second, 4);
-		vals.second += vals.first;
-
-		return vals;
+	/**
+	 * Mix three words of state, held as a, b and c in the array
+	 */
+	private static void mix(int[] abc) {
+		int a = abc[0], b = abc[1], c = abc[2];
+		a -= c;
+		a ^= rot(c, 4);
+		c += b;
+
+		b -= a;
+		b ^= rot(a, 6);
+		a += c;
+
+		c -= b;
+		c ^= rot(b, 8);
+		b += a;
+
+		a -= c;
+		a ^= rot(c, 16);
+		c += b;
+
+		b -= a;
+		b ^= rot(a, 19);
+		a += c;
+
+		c -= b;
+		c ^= rot(b, 4);
+		b += a;
+		abc[0] = a;
+		abc[1] = b;
+		abc[2] = c;
 	}
 
-	public static Triple<Integer, Integer, Integer> finalise(Triple<Integer, Integer, Integer> vals) {
-		vals.third ^= vals.second;
-		vals.third -= rot(vals.second, 14);
-
-		vals.first ^= vals.third;
-		vals.first -= rot(vals.third, 11);
+	/**
+	 * The final mixing of three words of state, after which c is the hash
+	 */
+	private static void finalise(int[] abc) {
+		int a = abc[0], b = abc[1], c = abc[2];
+		c ^= b;
+		c -= rot(b, 14);
 
-		vals.second ^= vals.first;
-		vals.second -= rot(vals.first, 25);
+		a ^= c;
+		a -= rot(c, 11);
 
-		vals.third ^= vals.second;
-		vals.third -= rot(vals.second, 16);
+		b ^= a;
+		b -= rot(a, 25);
 
-		vals.first ^= vals.third;
-		vals.first -= rot(vals.third, 4);
+		c ^= b;
+		c -= rot(b, 16);
 
-		vals.second ^= vals.first;
-		vals.second -= rot(vals.first, 14);
+		a ^= c;
+		a -= rot(c, 4);
 
-		vals.third ^= vals.second;
-		vals.third -= rot(vals.second, 24);
+		b ^= a;
+		b -= rot(a, 14);
 
-		return vals;
+		c ^= b;
+		c -= rot(b, 24);
+		abc[0] = a;
+		abc[1] = b;
+		abc[2] = c;
 	}
 
 	public static int hashcode(int[] vals) {
-		Triple<Integer, Integer, Integer> t = new Triple<Integer, Integer, Integer>(0, 0, 0);
+		int[] abc = new int[3];
 		for (int i = 0; i < vals.length; i += 3) {
+			abc[0] += vals[i];
+			if (i + 1 < vals.length) {
+				abc[1] += vals[i + 1];
+			}
+			if (i + 2 < vals.length) {
+				abc[2] += vals[i + 2];
+			}
 			if (i + 3 >= vals.length) {
-				t.first += vals[i];
-				if (i + 1 < vals.length) {
-					t.second += vals[i + 1];
-				}
-				if (i + 2 < vals.length) {
-					t.third += vals[i + 2];
-				}
-				finalise(t);
+				finalise(abc);
 			} else {
-				t.first += vals[i];
-				t.second += vals[i + 1];
-				t.third += vals[i + 2];
-				mix(t);
+				mix(abc);
 			}
 		}
-
-		return t.third;
+		return abc[2];
 	}
 }
@@ -188,22 +188,16 @@ public class SpanningGraph {
 	}
 
 
-	static BCDat datae = new BCDat();
+	static BCDat data = new BCDat();
 
-	public void extractBiconnectedComponents(List<SpanningGraph> bcs) { // was retree
+	public void extractBiconnectedComponents(final List<SpanningGraph> bcs) { // was retree
 		// Now, we traverse the entire graph and extract any and all biconnected components
-
-		datae.reset(graph.domainSize());
-
-		// now, check for connectedness
-		for (int i : graph.vertices()) {
-			if (!datae.visited.get(i)) {
-				// dfs search to identify component roots
-//				System.out.println("DEBUG --- Going in the loop");
-				extract_biconnects(i, i, bcs, datae);
+		data.extract(graph.domainSize(), graph.vertices(), graph.cursor(), new BCDat.Components() {
+			@Override
+			public void component(int[] from, int[] to, int[] count, int start, int end) {
+				bcs.add(extract_biconnect(from, to, count, start, end));
 			}
-		}
-//		System.out.println("DEGUG --- " + bcs.size());
+		});
 	}
 
 	public void removeGraphs(List<SpanningGraph> graphs) {
@@ -220,99 +214,19 @@ public class SpanningGraph {
 		ncomponents = 99; // not sure how many there are ...
 	}
 
-	static BCDat datac = new BCDat();
-
 	private void checkBiConnectivity() { // was retree
-		// reset visited information
-
-		datac.reset(graph.domainSize());
-
-		nartics = 0;
-		ncomponents = 1;
-		// dfs search to identify component roots
-		biconnect(graph.vertices().iterator().next(), graph.vertices().iterator().next(), datac);
-		// now, check for connectedness
-		for (int i : graph.vertices()) {
-			if (!datac.visited.get(i)) {
-				biconnect(i, i, datac);
-				ncomponents++;
-			}
-		}
+		data.check(graph.domainSize(), graph.vertices(), graph.cursor());
+		nartics = data.nartics();
+		ncomponents = data.ncomponents();
 	}
 
-	private void biconnect(int u, int v, BCDat data) {
-		// traverse edge tail->head
-		data.dfsnum.set(v, data.vindex);
-		data.visited.set(v, true);
-		data.lowlink.set(v, data.vindex++);
-		// now, consider edges
-		for (Map.Entry<Integer, Integer> i : graph.edges(v)) {
-			int w = i.getKey();
-			if (!data.visited.get(w)) {
-				biconnect(v, w, data);
-				data.lowlink.set(v, Math.min(data.lowlink.get(v), data.lowlink.get(w)));
-				if (data.lowlink.get(w) == data.dfsnum.get(v)) {
-					// v is an articulation point separating
-					// the component containing w from others.
-					nartics++;
-				} else if (data.lowlink.get(w) > data.dfsnum.get(v)) {
-					// v is not in an bicomp with w
-					nartics += 2;
-				}
-			} else if (u != w && data.dfsnum.get(v) > data.dfsnum.get(w)) {
-				// this is a real back edge ...
-				data.lowlink.set(v, Math.min(data.lowlink.get(v), data.dfsnum.get(w)));
-			}
-		}
-	}
-
-	private void extract_biconnects(int u, int v, List<SpanningGraph> bcs, BCDat data) {
-		// traverse edge tail->head
-		data.dfsnum.set(v, data.vindex);
-		data.visited.set(v, true);
-		data.lowlink.set(v, data.vindex++);
-		// now, consider edges
-		for (Map.Entry<Integer, Integer> i : graph.edges(v)) {
-			int w = i.getKey();
-//			System.out.println("DEBUG --- First Inner loop " + w + " " + v);
-			Triple<Integer, Integer, Integer> e = new Triple<Integer, Integer, Integer>(v, w, i.getValue());
-
-			if (!data.visited.get(w)) {
-//				System.out.println("DEBUG --- Second inner loop");
-				data.cstack.add(e);
-				extract_biconnects(v, w, bcs, data);
-				data.lowlink.set(v, Math.min(data.lowlink.get(v), data.lowlink.get(w)));
-				if (data.lowlink.get(w) == data.dfsnum.get(v)) {
-//					System.out.println("DEBUG -- Adding to list");
-					// v is an articulation point separating
-					// the component containing w from others.
-					bcs.add(extract_biconnect(e, data));
-				} else if (data.lowlink.get(w) > data.dfsnum.get(v)) {
-					// v is not in a biconnected component with w
-					data.cstack.remove(data.cstack.size() - 1);
-//					System.out.println("DEBUG --- Removing from cstack");
-				}
-			} else if (w != u && data.dfsnum.get(v) > data.dfsnum.get(w)) {
-				// this is a back edge ...
-				data.lowlink.set(v, Math.min(data.lowlink.get(v), data.dfsnum.get(w)));
-				// which means we're in a biconnected component ...
-				data.cstack.add(e);
-			}
-		}
-	}
-
-	
-	
-	private SpanningGraph extract_biconnect(Triple<Integer, Integer, Integer> e, BCDat data) {
+	private SpanningGraph extract_biconnect(int[] from, int[] to, int[] count, int start, int end) {
 		SpanningGraph g = new SpanningGraph(graph.domainSize());
-		Triple<Integer, Integer, Integer> c = new Triple<Integer, Integer, Integer>(0, 0, 0);
-		do {
-			c = data.cstack.get(data.cstack.size() - 1);
+		for (int i = end - 1; i >= start; i--) {
 			// in what follows, I use g.graph to avoid rechecking
 			// biconnectivity every time...
-			g.graph.addEdge(c.first, c.second, c.third);
-			data.cstack.remove(data.cstack.size() - 1);
-		} while (c != e);
+			g.graph.addEdge(from[i], to[i], count[i]);
+		}
 
 		// finally, remove any dumb vertices!
 		for (int i = 0; i != graph.domainSize(); ++i) {
@@ -321,8 +235,6 @@ public class SpanningGraph {
 			}
 		}
 
-		g.checkBiConnectivity();
-
 		g.nartics = 1; // since this is a biconnected component!
 		g.ncomponents = 1;
 
@@ -1,6 +1,10 @@
 package polynomial;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 public class FactorPoly {
 
@@ -8,6 +12,10 @@ public class FactorPoly {
 
 	private YTerms[] xterms;
 	private int nxterms;
+	/**
+	 * The prime every coefficient is reduced by, or zero if they are exact
+	 */
+	private long modulus;
 
 	/* =============================== */
 	/* ========= CONSTRUCTORS ======== */
@@ -23,11 +31,25 @@ public class FactorPoly {
 	}
 
 	public FactorPoly(XYTerm xyt) {
+		this(xyt, 0);
+	}
+
+	/**
+	 * Make a polynomial of one term, whose coefficients are kept reduced modulo a prime
+	 * 
+	 * @param xyt
+	 *            The term
+	 * @param modulus
+	 *            A prime below 2^31, or zero to keep the coefficients exact
+	 */
+	public FactorPoly(XYTerm xyt, long modulus) {
 		nxterms = xyt.xpower + 1;
+		this.modulus = modulus;
 		// create the xterm array
 		xterms = new YTerms[nxterms];
 		for(int i =0;i<nxterms;i++){
 			xterms[i] = new YTerms(); 
+			xterms[i].modulus = modulus;
 		}
 		this.add(xyt);
 	}
@@ -36,10 +58,16 @@ public class FactorPoly {
 		clone(fp);
 	}
 
+	/**
+	 * @param nx
+	 *            The number of x-terms
+	 * @param xts
+	 *            The x-terms, of which only the first nx are copied, since any after those may be null padding
+	 */
 	public FactorPoly(int nx, YTerms[] xts) {
 		nxterms = nx;
-		xterms = new YTerms[xts.length];
-		for(int i=0;i<xts.length;i++){
+		xterms = new YTerms[nx];
+		for(int i=0;i<nx;i++){
 			xterms[i] = new YTerms(xts[i]);
 		}
 	}
@@ -60,6 +88,10 @@ public class FactorPoly {
 		this.nxterms = src.nxterms;
 		src.nxterms = t;
 
+		long m = this.modulus;
+		this.modulus = src.modulus;
+		src.modulus = m;
+
 		YTerms[] a = xterms;
 		xterms = src.xterms;
 		src.xterms = a;
@@ -78,6 +110,7 @@ public class FactorPoly {
 	}
 
 	public void add(FactorPoly p) {
+		check(p);
 		// make sure enough x terms
 		resize_xterms(p.nxterms);
 		for (int i = 0; i < p.nxterms; ++i) {
@@ -95,6 +128,7 @@ public class FactorPoly {
 	}
 
 	public void minus(FactorPoly p) {
+		check(p);
 		// make sure enough x terms
 		resize_xterms(p.nxterms);
 		// now do the subtraction
@@ -105,6 +139,31 @@ public class FactorPoly {
 		}
 	}
 
+	/**
+	 * Divide by x - 1, by synthetic division. The division must be exact, that is the coefficients of each power of y must sum to zero
+	 * over the powers of x, as they do for the difference of two polynomials that agree at x = 1.
+	 */
+	public void divideByXMinusOne() {
+		// afterwards xterms[i] holds the sum of the old xterms[i..], which
+		// is the quotient's xterms[i-1], and xterms[0] the zero remainder
+		for (int i = nxterms - 2; i >= 0; --i) {
+			if (!xterms[i + 1].is_empty()) {
+				xterms[i].add(xterms[i + 1]);
+			}
+		}
+		System.arraycopy(xterms, 1, xterms, 0, nxterms - 1);
+		xterms[--nxterms] = null;
+	}
+
+	/**
+	 * Drop the zero coefficients that subtraction can leave at either end of the range of y powers in each x-term
+	 */
+	public void trim() {
+		for (int i = 0; i < nxterms; ++i) {
+			xterms[i].trim();
+		}
+	}
+
 	public void times(BigInteger coefficient) {
 		for (int i = 0; i < nxterms; ++i) {
 			xterms[i].times(coefficient);
@@ -125,34 +184,162 @@ public class FactorPoly {
 	}
 
 	/*
-	 * The more complicated general case
+	 * The more complicated general case. Each pair of x-terms is multiplied straight into the result, or for large polynomials the
+	 * whole product is done at once by Kronecker substitution.
 	 */
 	public void times(FactorPoly p) {
+		check(p);
 		if (p.nxterms == 1) {
 			// optimise simple case
 			YTerms ps = new YTerms(p.xterms[0]);
 			for (int j = 0; j < nxterms; ++j) {
 				xterms[j].times(ps);
 			}
+		} else if (modulus == 0 && (long) nterms() * p.nterms() >= KRONECKER_THRESHOLD && kronecker(p)) {
+			return;
 		} else {
 			FactorPoly r = new FactorPoly();
+			r.reduce(modulus);
+			r.resize_xterms(nxterms + p.nxterms - 1);
 
 			for (int i = 0; i < p.nxterms; ++i) {
 				if (p.xterms[i].is_empty()) {
 					continue;
 				}
-				FactorPoly tmp = new FactorPoly(this);
-				tmp.times(new XYTerm(i, 0));
-				YTerms ps = new YTerms(p.xterms[i]);
-				for (int j = 0; j < tmp.nxterms; ++j) {
-					tmp.xterms[j].times(ps);
+				for (int j = 0; j < nxterms; ++j) {
+					r.xterms[i + j].addProduct(xterms[j], p.xterms[i]);
 				}
-				r.add(tmp);
 			}
 			this.swap(r);
 		}
 	}
 
+	/**
+	 * Products with fewer pairs of terms than this are never done by Kronecker substitution. With wider coefficients it takes more
+	 * pairs, growing with the square of the slot width, since a single large multiplication gains less over many small ones.
+	 */
+	private static final int KRONECKER_THRESHOLD = 1 << 16;
+
+	/**
+	 * Multiply by Kronecker substitution. Each polynomial is packed into one integer, with a slot for each coefficient wide enough
+	 * that the coefficients of the product cannot carry into each other, so the product can be read off a single BigInteger
+	 * multiplication, which is subquadratic for large numbers. The y-terms of each x-term are given the same number of slots, enough
+	 * for those of the product.
+	 * 
+	 * @return False, having done nothing, if either polynomial has a negative coefficient or multiplying the terms one pair at a time
+	 *         is likely to be quicker
+	 */
+	private boolean kronecker(FactorPoly p) {
+		int ylo = Integer.MAX_VALUE, yhi = Integer.MIN_VALUE;
+		int pylo = Integer.MAX_VALUE, pyhi = Integer.MIN_VALUE;
+		int bits = 0, pbits = 0;
+		for (int i = 0; i < nxterms; ++i) {
+			YTerms y = xterms[i];
+			if (!y.is_empty()) {
+				int length = y.bitLength();
+				if (length < 0) {
+					return false;
+				}
+				ylo = Math.min(ylo, y.ymin);
+				yhi = Math.max(yhi, y.ymax);
+				bits = Math.max(bits, length);
+			}
+		}
+		for (int i = 0; i < p.nxterms; ++i) {
+			YTerms y = p.xterms[i];
+			if (!y.is_empty()) {
+				int length = y.bitLength();
+				if (length < 0) {
+					return false;
+				}
+				pylo = Math.min(pylo, y.ymin);
+				pyhi = Math.max(pyhi, y.ymax);
+				pbits = Math.max(pbits, length);
+			}
+		}
+		if (ylo > yhi || pylo > pyhi) {
+			return false;
+		}
+		// each coefficient of the product is a sum of at most this many products
+		int n = Math.min(nterms(), p.nterms());
+		int slotBits = bits + pbits + (32 - Integer.numberOfLeadingZeros(n));
+		double scale = slotBits / 128.0;
+		if (slotBits < 64 || (double) nterms() * p.nterms() < KRONECKER_THRESHOLD * scale * scale) {
+			// the terms can be multiplied as longs, or are too wide
+			return false;
+		}
+		int slot = (slotBits + 7) / 8;
+		int width = (yhi - ylo) + (pyhi - pylo) + 1;
+		BigInteger a = new BigInteger(1, pack(ylo, width, slot));
+		BigInteger b = new BigInteger(1, p.pack(pylo, width, slot));
+		byte[] c = a.multiply(b).toByteArray();
+
+		FactorPoly r = new FactorPoly();
+		r.reduce(modulus);
+		r.resize_xterms(nxterms + p.nxterms - 1);
+		for (int x = 0; x < r.nxterms; ++x) {
+			// the same range of y powers as the product of the x-terms
+			int ymin = Integer.MAX_VALUE, ymax = Integer.MIN_VALUE;
+			for (int i = Math.max(0, x - (nxterms - 1)); i < p.nxterms && i <= x; ++i) {
+				YTerms f = xterms[x - i], g = p.xterms[i];
+				if (!f.is_empty() && !g.is_empty()) {
+					ymin = Math.min(ymin, f.ymin + g.ymin);
+					ymax = Math.max(ymax, f.ymax + g.ymax);
+				}
+			}
+			if (ymin > ymax) {
+				continue;
+			}
+			YTerms ys = new YTerms(ymin, ymax);
+			ys.modulus = modulus;
+			for (int y = ymin; y <= ymax; ++y) {
+				int k = x * width + (y - ylo - pylo);
+				int end = c.length - k * slot;
+				int start = Math.max(0, end - slot);
+				if (end > start) {
+					ys.set(y, new BigInteger(1, c, start, end - start));
+				}
+			}
+			r.xterms[x] = ys;
+		}
+		this.swap(r);
+		return true;
+	}
+
+	/**
+	 * Write the coefficients big-endian into slots of the given number of bytes, the coefficient of x^i*y^j going in slot i * width
+	 * + (j - ylo) from the end
+	 */
+	private byte[] pack(int ylo, int width, int slot) {
+		int last = 0;
+		for (int x = 0; x < nxterms; ++x) {
+			if (!xterms[x].is_empty()) {
+				last = x * width + (xterms[x].ymax - ylo);
+			}
+		}
+		byte[] buf = new byte[(last + 1) * slot];
+		for (int x = 0; x < nxterms; ++x) {
+			YTerms ys = xterms[x];
+			if (ys.is_empty()) {
+				continue;
+			}
+			for (int y = ys.ymin; y <= ys.ymax; ++y) {
+				int end = buf.length - (x * width + (y - ylo)) * slot;
+				if (ys.promoted()) {
+					byte[] bs = ys.get(y).toByteArray();
+					int len = Math.min(bs.length, slot);
+					System.arraycopy(bs, bs.length - len, buf, end - len, len);
+				} else {
+					long v = ys.getLong(y);
+					for (int i = end - 1; i >= end - slot && v != 0; --i, v >>>= 8) {
+						buf[i] = (byte) v;
+					}
+				}
+			}
+		}
+		return buf;
+	}
+
 	public FactorPoly addnew(FactorPoly p) {
 		FactorPoly r = new FactorPoly(this);
 		r.add(p);
@@ -248,6 +435,115 @@ public class FactorPoly {
 		return r;
 	}
 
+	/**
+	 * Reduce every coefficient modulo a prime, and keep them reduced from now on. Nothing is done if the modulus is zero or the
+	 * polynomial is already reduced by it.
+	 * 
+	 * @param m
+	 *            A prime below 2^31, or zero
+	 * @return This polynomial
+	 */
+	public FactorPoly reduce(long m) {
+		if (m == 0 || m == modulus) {
+			return this;
+		}
+		if (modulus != 0) {
+			throw new RuntimeException("Polynomial is already reduced modulo " + modulus);
+		}
+		modulus = m;
+		for (int i = 0; i < nxterms; ++i) {
+			xterms[i].reduce(m);
+		}
+		return this;
+	}
+
+	/**
+	 * @return The prime the coefficients are reduced by, or zero if they are exact
+	 */
+	public long modulus() {
+		return modulus;
+	}
+
+	/**
+	 * Put a polynomial back together from its residues modulo several primes, by the Chinese remainder theorem (in Garner's mixed radix
+	 * form). Each coefficient comes out as the one value between zero and the product of the primes with the given residues, so the
+	 * primes must be distinct and their product larger than every coefficient, which must not be negative.
+	 * 
+	 * @param residues
+	 *            The polynomial reduced modulo each prime
+	 * @return The polynomial with exact coefficients
+	 */
+	public static FactorPoly reconstruct(FactorPoly[] residues) {
+		int k = residues.length;
+		long[] primes = new long[k];
+		for (int i = 0; i < k; i++) {
+			primes[i] = residues[i].modulus;
+		}
+		// inverse[i][j] is the inverse of primes[i] modulo primes[j], for i < j
+		long[][] inverse = new long[k][k];
+		for (int i = 0; i < k; i++) {
+			for (int j = i + 1; j < k; j++) {
+				inverse[i][j] = BigInteger.valueOf(primes[i]).modInverse(BigInteger.valueOf(primes[j])).longValue();
+			}
+		}
+
+		int nx = 0;
+		for (FactorPoly p : residues) {
+			nx = Math.max(nx, p.nxterms);
+		}
+		YTerms[] xts = new YTerms[nx];
+		long[] digits = new long[k];
+		for (int x = 0; x < nx; x++) {
+			// the residues may not all have the same range of y powers
+			int ymin = Integer.MAX_VALUE;
+			int ymax = -1;
+			for (FactorPoly p : residues) {
+				if (x < p.nxterms && !p.xterms[x].is_empty()) {
+					ymin = Math.min(ymin, p.xterms[x].ymin);
+					ymax = Math.max(ymax, p.xterms[x].ymax);
+				}
+			}
+			if (ymax < 0) {
+				xts[x] = new YTerms();
+				continue;
+			}
+			xts[x] = new YTerms(ymin, ymax);
+			for (int y = ymin; y <= ymax; y++) {
+				for (int j = 0; j < k; j++) {
+					YTerms ys = x < residues[j].nxterms ? residues[j].xterms[x] : null;
+					long t = ys == null || ys.is_empty() || y < ys.ymin || y > ys.ymax ? 0 : ys.getLong(y);
+					for (int i = 0; i < j; i++) {
+						t = Math.floorMod(t - digits[i], primes[j]) * inverse[i][j] % primes[j];
+					}
+					digits[j] = t;
+				}
+				xts[x].set(y, mixedRadix(digits, primes));
+			}
+		}
+		return new FactorPoly(nx, xts);
+	}
+
+	/**
+	 * @return digits[0] + primes[0] * (digits[1] + primes[1] * (digits[2] + ...))
+	 */
+	private static BigInteger mixedRadix(long[] digits, long[] primes) {
+		int i = digits.length - 1;
+		long v = digits[i];
+		try {
+			for (i--; i >= 0; i--) {
+				v = Math.addExact(Math.multiplyExact(v, primes[i]), digits[i]);
+			}
+			return BigInteger.valueOf(v);
+		} catch (ArithmeticException e) {
+			// carry on from where the long ran out
+			BigInteger r = BigInteger.valueOf(v);
+			for (; i >= 0; i--) {
+				r = r.multiply(BigInteger.valueOf(primes[i])).add(BigInteger.valueOf(digits[i]));
+			}
+			return r;
+		}
+	}
+
 	public int nterms() {
 		int r = 0;
 		for (int i = 0; i < nxterms; ++i) {
@@ -256,32 +552,50 @@ public class FactorPoly {
 		return r;
 	}
 
+	int nxterms() {
+		return nxterms;
+	}
+
+	YTerms xterm(int i) {
+		return xterms[i];
+	}
+
 	private void clone(FactorPoly p) {
 		nxterms = p.nxterms;
+		modulus = p.modulus;
 		xterms = new YTerms[nxterms];
 		for (int i = 0; i < nxterms; ++i) {
 			xterms[i] = new YTerms(p.xterms[i]);
 		}
 	}
 
+	/**
+	 * Make sure there are at least ns x-terms. The existing YTerms are kept, and the array grows with padding, as the YTerms do, so
+	 * that a polynomial built up by repeated additions is not copied each time. Slots past nxterms are unused and may be null.
+	 */
 	private void resize_xterms(int ns) {
-		if (ns < nxterms) {
+		if (ns <= nxterms) {
 			return;
 		}
-		YTerms[] xs = new YTerms[ns];
-		for(int i=0;i<ns;i++){
-			xs[i] = new YTerms();
+		if (ns > xterms.length) {
+			xterms = Arrays.copyOf(xterms, ns + ns * FPOLY_PADDING_FACTOR);
 		}
-		// need to use swap here, because
-		// I don't want the following delete []
-		// call to call destructors on my YTerms
-		for (int i = 0; i < nxterms; ++i) {
-			xs[i].swap(xterms[i]);
+		for (int i = nxterms; i < ns; ++i) {
+			xterms[i] = new YTerms();
+			xterms[i].modulus = modulus;
 		}
-		xterms = xs;
 		nxterms = ns;
 	}
 
+	/**
+	 * Polynomials can only be combined if they have the same modulus
+	 */
+	private void check(FactorPoly p) {
+		if (p.modulus != modulus) {
+			throw new RuntimeException("Cannot combine polynomials modulo " + modulus + " and " + p.modulus);
+		}
+	}
+
 	public static void main(String args[]){
 		System.out.println("Initialising Testing protocol for polynomials");
 		FactorPoly p1 = new FactorPoly(new Y(0));
@@ -299,5 +613,105 @@ public class FactorPoly {
 		System.out.println("--" + p1);
 		System.out.println("--" + px);
 //		System.out.println(py);
+
+		// Kronecker substitution against multiplying one pair of x-terms at a time, with coefficients both fitting in a long and
+		// promoted, and some x-terms empty
+		Random rand = new Random(1);
+		int[][] sizes = { { 20, 20, 40 }, { 30, 30, 100 }, { 12, 40, 70 } };
+		for (int[] size : sizes) {
+			FactorPoly a = random(rand, size[0], size[1], size[2], 4);
+			FactorPoly b = random(rand, size[0], size[1], size[2], 5);
+			FactorPoly k = new FactorPoly(a);
+			if (!k.kronecker(b)) {
+				throw new RuntimeException("Kronecker substitution not used for " + size[0] + "x" + size[1] + " terms");
+			}
+			same(k, timesByPairs(a, b), "Kronecker substitution");
+		}
+		// a negative coefficient rules it out, and times falls back to multiplying pairs
+		FactorPoly a = random(rand, 20, 20, 40, 4);
+		FactorPoly b = random(rand, 20, 20, 40, 5);
+		a.xterms[3].set(a.xterms[3].ymin + 1, BigInteger.valueOf(-12345));
+		if (new FactorPoly(a).kronecker(b)) {
+			throw new RuntimeException("Kronecker substitution used with a negative coefficient");
+		}
+		same(a.timesnew(b), timesByPairs(a, b), "Fallback from Kronecker substitution");
+		System.out.println("Kronecker substitution agrees with multiplying pairs");
+
+		// (1 + x + y)^60, whose coefficients are the trinomial coefficients 60! / (i! j! (60-i-j)!), largest at 60! / (20!)^3 of 89
+		// bits, reduced modulo primes chosen as BitTutte does, taking primes below 2^31 until their product is larger than the sum
+		// of the coefficients, 3^60
+		int n = 60;
+		FactorPoly t = new FactorPoly(new XYTerm(0, 0));
+		for (int i = 0; i < n; ++i) {
+			FactorPoly f = new FactorPoly(new XYTerm(0, 0, 1));
+			f.add(new XYTerm(1, 0));
+			t.times(f);
+		}
+		BigInteger middle = factorial(n).divide(factorial(n / 3).pow(3));
+		if (!t.xterms[n / 3].get(n / 3).equals(middle)) {
+			throw new RuntimeException("Coefficient of x^20*y^20 is " + t.xterms[n / 3].get(n / 3) + " rather than " + middle);
+		}
+		List<FactorPoly> residues = new ArrayList<FactorPoly>();
+		BigInteger product = BigInteger.ONE;
+		long prime = 1L << 31;
+		while (product.compareTo(BigInteger.valueOf(3).pow(n)) <= 0) {
+			do {
+				prime--;
+			} while (!BigInteger.valueOf(prime).isProbablePrime(40));
+			residues.add(new FactorPoly(t).reduce(prime));
+			product = product.multiply(BigInteger.valueOf(prime));
+		}
+		same(reconstruct(residues.toArray(new FactorPoly[residues.size()])), new FactorPoly(t), "Reconstruction from "
+				+ residues.size() + " primes");
+		System.out.println("(1 + x + y)^" + n + " reconstructed from " + residues.size() + " primes");
+	}
+
+	private static BigInteger factorial(int n) {
+		BigInteger r = BigInteger.ONE;
+		for (int i = 2; i <= n; ++i) {
+			r = r.multiply(BigInteger.valueOf(i));
+		}
+		return r;
+	}
+
+	/**
+	 * @return A polynomial with random coefficients of up to the given number of bits, every so often x-term being empty
+	 */
+	private static FactorPoly random(Random rand, int nx, int ny, int bits, int gap) {
+		YTerms[] xts = new YTerms[nx];
+		for (int x = 0; x < nx; ++x) {
+			if (x % gap == 0) {
+				xts[x] = new YTerms();
+				continue;
+			}
+			int ymin = rand.nextInt(3);
+			xts[x] = new YTerms(ymin, ymin + ny - 1);
+			for (int y = ymin; y < ymin + ny; ++y) {
+				xts[x].set(y, new BigInteger(bits, rand));
+			}
+		}
+		return new FactorPoly(nx, xts);
+	}
+
+	/**
+	 * Multiply as times does for small polynomials
+	 */
+	private static FactorPoly timesByPairs(FactorPoly a, FactorPoly b) {
+		FactorPoly r = new FactorPoly();
+		r.resize_xterms(a.nxterms + b.nxterms - 1);
+		for (int i = 0; i < b.nxterms; ++i) {
+			for (int j = 0; j < a.nxterms; ++j) {
+				r.xterms[i + j].addProduct(a.xterms[j], b.xterms[i]);
+			}
+		}
+		return r;
+	}
+
+	private static void same(FactorPoly p, FactorPoly q, String what) {
+		p.trim();
+		q.trim();
+		if (!p.toString().equals(q.toString())) {
+			throw new RuntimeException(what + " gives " + p + " rather than " + q);
+		}
 	}
 }
@@ -0,0 +1,188 @@
+package polynomial;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * An immutable, serialised form of a FactorPoly, used where many polynomials are held for a long time (such as the Cache). Each y-term
+ * is stored as its range followed by its coefficients, and coefficients which fit in a long are written as variable length integers,
+ * so the common small coefficients take one or two bytes rather than a whole BigInteger.
+ *
+ * The layout is: nxterms, then for each x-term either 0 (empty) or ymin+1, ymax-ymin and the coefficients.
+ */
+public final class PackedPoly {
+	private final byte[] data;
+
+	public PackedPoly(FactorPoly p) {
+		Writer w = new Writer();
+		w.writeInt(p.nxterms());
+		for (int i = 0; i < p.nxterms(); i++) {
+			YTerms ys = p.xterm(i);
+			if (ys.is_empty()) {
+				w.writeInt(0);
+			} else {
+				w.writeInt(ys.ymin + 1);
+				w.writeInt(ys.ymax - ys.ymin);
+				for (int j = ys.ymin; j <= ys.ymax; j++) {
+					if (ys.promoted()) {
+						w.writeCoefficient(ys.get(j));
+					} else {
+						w.writeCoefficient(ys.getLong(j));
+					}
+				}
+			}
+		}
+		data = w.toByteArray();
+	}
+
+	/**
+	 * Wrap an already serialised polynomial
+	 *
+	 * @param data
+	 *            As returned by bytes()
+	 */
+	public PackedPoly(byte[] data) {
+		this.data = data;
+	}
+
+	/**
+	 * @return The serialised form, which must not be modified
+	 */
+	public byte[] bytes() {
+		return data;
+	}
+
+	/**
+	 * @return A new polynomial equal to the one that was packed
+	 */
+	public FactorPoly unpack() {
+		Reader r = new Reader(data);
+		int nx = r.readInt();
+		YTerms[] xts = new YTerms[nx];
+		for (int i = 0; i < nx; i++) {
+			int ymin = r.readInt() - 1;
+			if (ymin < 0) {
+				xts[i] = new YTerms();
+			} else {
+				int ymax = ymin + r.readInt();
+				xts[i] = new YTerms(ymin, ymax);
+				for (int j = ymin; j <= ymax; j++) {
+					r.readCoefficient(xts[i], j);
+				}
+			}
+		}
+		return new FactorPoly(nx, xts);
+	}
+
+	/**
+	 * An estimate of the heap space taken up by this object
+	 *
+	 * @return Size in bytes
+	 */
+	public long sizeInBytes() {
+		return 16 + 16 + data.length;
+	}
+
+	public int hashCode() {
+		return Arrays.hashCode(data);
+	}
+
+	public boolean equals(Object o) {
+		if (o instanceof PackedPoly) {
+			return Arrays.equals(data, ((PackedPoly) o).data);
+		}
+		return false;
+	}
+
+	private static final class Writer {
+		private byte[] buf = new byte[32];
+		private int len = 0;
+
+		private void write(int b) {
+			if (len == buf.length) {
+				buf = Arrays.copyOf(buf, len * 2);
+			}
+			buf[len++] = (byte) b;
+		}
+
+		void writeLong(long v) {
+			while ((v & ~0x7FL) != 0) {
+				write((int) ((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			write((int) v);
+		}
+
+		void writeInt(int v) {
+			writeLong(v & 0xFFFFFFFFL);
+		}
+
+		/**
+		 * The low bit of the first value says whether a long (zig-zag encoded) or the length of a BigInteger follows
+		 */
+		void writeCoefficient(BigInteger c) {
+			if (c.bitLength() < 62) {
+				writeCoefficient(c.longValue());
+			} else {
+				byte[] bs = c.toByteArray();
+				writeLong(((long) bs.length << 1) | 1);
+				for (byte b : bs) {
+					write(b);
+				}
+			}
+		}
+
+		void writeCoefficient(long v) {
+			if (v >= -(1L << 61) && v < (1L << 61)) {
+				writeLong(((v << 1) ^ (v >> 63)) << 1);
+			} else {
+				writeCoefficient(BigInteger.valueOf(v));
+			}
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, len);
+		}
+	}
+
+	private static final class Reader {
+		private final byte[] buf;
+		private int pos = 0;
+
+		Reader(byte[] buf) {
+			this.buf = buf;
+		}
+
+		long readLong() {
+			long v = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buf[pos++];
+				v |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return v;
+		}
+
+		int readInt() {
+			return (int) readLong();
+		}
+
+		/**
+		 * Read a coefficient into the y^j term of ys, without making a BigInteger when it fits in a long
+		 */
+		void readCoefficient(YTerms ys, int j) {
+			long v = readLong();
+			if ((v & 1) == 0) {
+				v >>>= 1;
+				ys.set(j, (v >>> 1) ^ -(v & 1));
+				return;
+			}
+			int n = (int) (v >>> 1);
+			BigInteger c = new BigInteger(Arrays.copyOfRange(buf, pos, pos + n));
+			pos += n;
+			ys.set(j, c);
+		}
+	}
+}
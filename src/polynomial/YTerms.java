@@ -1,7 +1,17 @@
 package polynomial;
 
 import java.math.BigInteger;
-
+import java.util.Arrays;
+
+/**
+ * The coefficients of y^ymin..y^ymax in a polynomial, with some padding either side so that the range can grow without reallocating.
+ *
+ * Coefficients are held in a long[] for as long as they all fit, so that the common arithmetic allocates nothing. The first operation
+ * which would overflow a long promotes the whole array to BigIntegers, where it then stays.
+ *
+ * Alternatively the coefficients can be kept reduced modulo a prime, in which case they always stay in longs. Terms with different
+ * moduli must not be combined.
+ */
 public class YTerms {
 
 	public int ymin;
@@ -9,7 +19,19 @@ public class YTerms {
 
 	private int fpadding;
 	private int bpadding;
+	/**
+	 * The coefficients while they all fit in a long, otherwise null
+	 */
+	long[] values;
+	/**
+	 * The coefficients once they have been promoted, otherwise null
+	 */
 	BigInteger[] coefficients;
+	/**
+	 * The prime the coefficients are reduced by, or zero if they are exact. It is below 2^31, so that the product of two reduced
+	 * coefficients fits in a long.
+	 */
+	long modulus;
 
 	/* =============================== */
 	/* ========= CONSTRUCTORS ======== */
@@ -20,6 +42,7 @@ public class YTerms {
 		ymax = (0);
 		fpadding = (0);
 		bpadding = (0);
+		values = null;
 		coefficients = null;
 	}
 
@@ -40,21 +63,29 @@ public class YTerms {
 			// now, we try to reuse memory where possible.
 			int src_ncoeffs = src.size();
 			int space = size() + fpadding + bpadding;
-			if (space < src_ncoeffs) {
+			if (space < src_ncoeffs || src.promoted() != promoted()) {
 
 				clone(src);
 			} else {
 				ymin = src.ymin;
 				ymax = src.ymax;
+				modulus = src.modulus;
 				fpadding = 0;
 				bpadding = space - src_ncoeffs;
-				// copy old stuff over
-				for (int i = 0; i < src_ncoeffs; ++i) {
-					coefficients[i] = src.coefficients[i];
-				}
-				// clear any old coefficients
-				for (int i = src_ncoeffs; i < space; ++i) {
-					coefficients[i] = BigInteger.ZERO;
+				if (promoted()) {
+					// copy old stuff over
+					for (int i = 0; i < src_ncoeffs; ++i) {
+						coefficients[i] = src.coefficients[i];
+					}
+					// clear any old coefficients
+					for (int i = src_ncoeffs; i < space; ++i) {
+						coefficients[i] = BigInteger.ZERO;
+					}
+				} else if (values != null) {
+					if (src_ncoeffs > 0) {
+						System.arraycopy(src.values, 0, values, 0, src_ncoeffs);
+					}
+					Arrays.fill(values, src_ncoeffs, space, 0);
 				}
 			}
 
@@ -79,10 +110,18 @@ public class YTerms {
 		this.bpadding = src.bpadding;
 		src.bpadding = temp;
 
+		long[] v = this.values;
+		this.values = src.values;
+		src.values = v;
+
 		BigInteger[] t = this.coefficients;
 		this.coefficients = src.coefficients;
 		src.coefficients = t;
 
+		long m = this.modulus;
+		this.modulus = src.modulus;
+		src.modulus = m;
+
 	}
 
 	/* =============================== */
@@ -94,7 +133,7 @@ public class YTerms {
 		resize(p.ypower, p.ypowerend);
 		// now, do the addition
 		for (int i = p.ypower; i <= p.ypowerend; ++i) {
-			this.set(i, get(i).add(BigInteger.ONE));
+			add((i + fpadding) - ymin, 1);
 		}
 	}
 
@@ -104,8 +143,15 @@ public class YTerms {
 		// now, do the addition
 		int start = ys.ymin;
 		int end = ys.ymax;
-		for (int i = start; i <= end; ++i) {
-			this.set(i, this.get(i).add(ys.get(i)));
+		if (ys.promoted()) {
+			promote();
+			for (int i = start; i <= end; ++i) {
+				this.set(i, this.get(i).add(ys.get(i)));
+			}
+		} else {
+			for (int i = start; i <= end; ++i) {
+				add((i + fpadding) - ymin, ys.values[(i + ys.fpadding) - ys.ymin]);
+			}
 		}
 	}
 
@@ -114,7 +160,7 @@ public class YTerms {
 		resize(ys.ypower, ys.ypowerend);
 		// now, do the subtraction
 		for (int i = ys.ypower; i <= ys.ypowerend; ++i) {
-			this.set(i, get(i).subtract(BigInteger.ONE));
+			add((i + fpadding) - ymin, -1);
 		}
 		// At this stage, we might have reduce the ytems to all zeros and
 		// we could eliminate them ...
@@ -126,20 +172,47 @@ public class YTerms {
 		// now, do the subtraction
 		int start = ys.ymin;
 		int end = ys.ymax;
-		for (int i = start; i <= end; ++i) {
-			this.set(i, this.get(i).subtract(ys.get(i)));
+		if (ys.promoted()) {
+			promote();
+			for (int i = start; i <= end; ++i) {
+				this.set(i, this.get(i).subtract(ys.get(i)));
+			}
+		} else {
+			for (int i = start; i <= end; ++i) {
+				subtract((i + fpadding) - ymin, ys.values[(i + ys.fpadding) - ys.ymin]);
+			}
 		}
 		// At this stage, we might have reduce the ytems to all zeros and
 		// we could eliminate them ...
 	}
 
 	void times(BigInteger coefficient) {
+		if (is_empty()) {
+			return;
+		}
+		if (modulus != 0) {
+			times(coefficient.mod(BigInteger.valueOf(modulus)).longValue());
+			return;
+		}
+		if (coefficient.bitLength() < 64) {
+			times(coefficient.longValue());
+			return;
+		}
 		int len = (ymax - ymin) + 1;
+		promote();
 		for (int i = 0; i != len; ++i) {
 			coefficients[i + fpadding] = coefficients[i + fpadding].multiply(coefficient);
 		}
 	}
 
+	private void times(long coefficient) {
+		coefficient = residue(coefficient);
+		int len = (ymax - ymin) + 1;
+		for (int i = 0; i != len; ++i) {
+			multiply(i + fpadding, coefficient);
+		}
+	}
+
 	public void times(XYTerm p) {
 		// if this poly is empty do nothing!
 		if (is_empty()) {
@@ -156,14 +229,25 @@ public class YTerms {
 			// easy case, only a shift required
 			ymin = nystart;
 			ymax = nyend;
+		} else if (values != null && bpadding >= p.ypowerend - p.ypower && sumsInPlace(p.ypowerend - p.ypower)) {
+			// harder case, but there was room to do it in place
+			ymin = nystart;
+			ymax = nyend;
 		} else {
-			// harder case
-
-			// The following could use padding, since it currently doesn't!
+			// harder case, into a new array
+			long[] o_values = values;
 			BigInteger[] o_coefficients = coefficients;
 			alloc(nystart, nyend);
 			int depth = (p.ypowerend - p.ypower) + 1;
 			int width = (yend - ystart) + 1;
+			if (o_values != null) {
+				if (sums(o_values, ypadding, width, depth)) {
+					return;
+				}
+				// the running sums overflowed, so start again with BigIntegers
+				o_coefficients = promote(o_values);
+			}
+			promote();
 
 			// going up the triangle
 			BigInteger acc = BigInteger.ZERO;
@@ -191,6 +275,77 @@ public class YTerms {
 		// and we're done!
 	}
 
+	/**
+	 * The same as the harder case of times(XYTerm) over longs, writing into the freshly allocated values
+	 * 
+	 * @return False if a running sum overflowed, in which case the values are left part written. This never happens with a modulus.
+	 */
+	private boolean sums(long[] o_values, int ypadding, int width, int depth) {
+		try {
+			// going up the triangle
+			long acc = 0;
+			for (int i = 0; i < Math.min(width, depth); ++i) {
+				acc = sum(acc, o_values[i + ypadding]);
+				values[i + fpadding] = acc;
+			}
+			// free fall (if there is any)
+			for (int i = width; i < depth; ++i) {
+				values[i + fpadding] = acc;
+			}
+			// going along the top (if there is one)
+			long sub = 0;
+			for (int i = depth; i < width; ++i) {
+				sub = sum(sub, o_values[i + ypadding - depth]);
+				acc = sum(acc, o_values[i + ypadding]);
+				values[i + fpadding] = difference(acc, sub);
+			}
+			// going down the triangle
+			for (int i = Math.max(depth, width); i < (ymax - ymin) + 1; ++i) {
+				sub = sum(sub, o_values[i + ypadding - depth]);
+				values[i + fpadding] = difference(acc, sub);
+			}
+			return true;
+		} catch (ArithmeticException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * The harder case of times(XYTerm) within the padding after ymax, which must have at least d places. Each new coefficient is the
+	 * sum of the old ones from d below it up to itself, so going down from the top only ever reads old values, apart from the one just
+	 * overwritten, which is kept aside.
+	 * 
+	 * @return False, having changed nothing, if a sum could overflow a long
+	 */
+	private boolean sumsInPlace(int d) {
+		int width = (ymax - ymin) + 1;
+		if (modulus == 0) {
+			// no sum can be larger than the sum of the magnitudes
+			try {
+				long bound = 0;
+				for (int k = 0; k < width; ++k) {
+					bound = Math.addExact(bound, Math.absExact(values[k + fpadding]));
+				}
+			} catch (ArithmeticException e) {
+				return false;
+			}
+		}
+		long acc = 0;
+		long above = 0;
+		for (int k = width + d - 1; k >= 0; --k) {
+			if (k + 1 < width) {
+				acc = difference(acc, above);
+			}
+			if (k >= d) {
+				acc = sum(acc, values[(k - d) + fpadding]);
+			}
+			above = k < width ? values[k + fpadding] : 0;
+			values[k + fpadding] = acc;
+		}
+		bpadding -= d;
+		return true;
+	}
+
 	/*
 	 * The more complicated general case. Big question as to whether this code can be optimised any more.
 	 */
@@ -204,22 +359,95 @@ public class YTerms {
 			// optimise simple case!
 			ymin += p.ymin;
 			ymax += p.ymax;
-			BigInteger v = p.get(p.ymin);
-
-			for (int i = ymin; i <= ymax; ++i) {
-				this.set(i, this.get(i).multiply(v));
+			if (p.promoted()) {
+				times(p.coefficients[p.fpadding]);
+			} else {
+				times(p.values[p.fpadding]);
 			}
 		} else {
 			YTerms r = new YTerms(p.ymin + ymin, p.ymax + ymax);
+			r.modulus = modulus;
+
+			if (promoted() || p.promoted() || !multiply(p, r)) {
+				r = new YTerms(p.ymin + ymin, p.ymax + ymax);
+				r.promote();
+				promote();
+				for (int i = p.ymin; i <= p.ymax; ++i) {
+					BigInteger v = p.get(i);
+					for (int j = ymin; j <= ymax; ++j) {
+						r.set(j + i, r.get(j + i).add(this.get(j).multiply(v)));
+					}
+				}
+			}
+
+			swap(r); // normal swap trick optimisation
+		}
+	}
 
+	/**
+	 * Multiply this by p into r, where all three hold longs and r is zero
+	 * 
+	 * @return False if a coefficient overflowed, in which case r is left part written
+	 */
+	private boolean multiply(YTerms p, YTerms r) {
+		try {
 			for (int i = p.ymin; i <= p.ymax; ++i) {
-				BigInteger v = p.get(i);
-				for (int j = ymin; j <= ymax; ++j) {
-					r.set(j + i, r.get(j + i).add(this.get(j).multiply(v)));
+				long v = p.values[(i + p.fpadding) - p.ymin];
+				if (v == 0) {
+					continue;
+				}
+				int k = (i + ymin + r.fpadding) - r.ymin;
+				for (int j = fpadding; j <= (ymax - ymin) + fpadding; ++j, ++k) {
+					r.values[k] = sum(r.values[k], product(values[j], v));
 				}
 			}
+			return true;
+		} catch (ArithmeticException e) {
+			return false;
+		}
+	}
 
-			swap(r); // normal swap trick optimisation
+	/**
+	 * Add the product of two terms to this one, growing it as needed. Nothing is allocated unless this has to grow or a coefficient
+	 * overflows a long.
+	 * 
+	 * @param a
+	 *            One factor, which must not be this
+	 * @param b
+	 *            The other factor, which must not be this
+	 */
+	public void addProduct(YTerms a, YTerms b) {
+		if (a.is_empty() || b.is_empty()) {
+			return;
+		}
+		resize(a.ymin + b.ymin, a.ymax + b.ymax);
+		int i = a.ymin;
+		int j = b.ymin;
+		if (!promoted() && !a.promoted() && !b.promoted()) {
+			try {
+				for (; i <= a.ymax; ++i, j = b.ymin) {
+					long v = a.values[(i + a.fpadding) - a.ymin];
+					if (v == 0) {
+						continue;
+					}
+					int k = (i + j + fpadding) - ymin;
+					int bk = (j + b.fpadding) - b.ymin;
+					for (; j <= b.ymax; ++j, ++k, ++bk) {
+						values[k] = sum(values[k], product(v, b.values[bk]));
+					}
+				}
+				return;
+			} catch (ArithmeticException e) {
+				// everything before a[i] * b[j] has been added exactly
+				promote();
+			}
+		}
+		promote();
+		for (; i <= a.ymax; ++i, j = b.ymin) {
+			BigInteger v = a.get(i);
+			for (; j <= b.ymax; ++j) {
+				this.set(i + j, this.get(i + j).add(v.multiply(b.get(j))));
+			}
 		}
 	}
 
@@ -228,27 +456,131 @@ public class YTerms {
 	/* ========================== */
 
 	public int size() {
-		if (coefficients == null) {
+		if (is_empty()) {
 			return 0;
 		}
 		return (ymax - ymin) + 1;
 	}
 
 	public boolean is_empty() {
-		return coefficients == null;
+		return values == null && coefficients == null;
+	}
+
+	/**
+	 * @return True if the coefficients are held as BigIntegers rather than longs
+	 */
+	public boolean promoted() {
+		return coefficients != null;
 	}
 
 	public BigInteger get(int i) {
+		if (values != null) {
+			return BigInteger.valueOf(values[(i + fpadding) - ymin]);
+		}
 		return coefficients[(i + fpadding) - ymin];
 	}
 
+	/**
+	 * The coefficient of y^i, which must not have been promoted
+	 */
+	long getLong(int i) {
+		return values[(i + fpadding) - ymin];
+	}
+
 	public void set(int i, BigInteger v) {
+		if (modulus != 0) {
+			values[(i + fpadding) - ymin] = v.mod(BigInteger.valueOf(modulus)).longValue();
+			return;
+		}
+		if (values != null) {
+			if (v.bitLength() < 64) {
+				values[(i + fpadding) - ymin] = v.longValue();
+				return;
+			}
+			promote();
+		}
 		coefficients[(i + fpadding) - ymin] = v;
 	}
 
+	public void set(int i, long v) {
+		if (values != null) {
+			values[(i + fpadding) - ymin] = residue(v);
+		} else {
+			coefficients[(i + fpadding) - ymin] = BigInteger.valueOf(v);
+		}
+	}
+
+	/**
+	 * Narrow the range past any zero coefficients at either end, leaving the terms empty if they are all zero
+	 */
+	void trim() {
+		while (!is_empty() && get(ymin).signum() == 0) {
+			if (ymin == ymax) {
+				values = null;
+				coefficients = null;
+				ymin = 1;
+				ymax = 0;
+				fpadding = 0;
+				bpadding = 0;
+			} else {
+				ymin++;
+				fpadding++;
+			}
+		}
+		while (!is_empty() && get(ymax).signum() == 0) {
+			ymax--;
+			bpadding++;
+		}
+	}
+
+	/**
+	 * @return The number of bits in the largest coefficient, or -1 if any is negative
+	 */
+	int bitLength() {
+		int bits = 0;
+		for (int i = ymin; i <= ymax; ++i) {
+			if (values != null) {
+				long v = values[(i + fpadding) - ymin];
+				if (v < 0) {
+					return -1;
+				}
+				bits = Math.max(bits, 64 - Long.numberOfLeadingZeros(v));
+			} else {
+				BigInteger v = coefficients[(i + fpadding) - ymin];
+				if (v.signum() < 0) {
+					return -1;
+				}
+				bits = Math.max(bits, v.bitLength());
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * Reduce the coefficients modulo a prime, and keep them reduced from now on
+	 * 
+	 * @param m
+	 *            A prime below 2^31
+	 */
+	void reduce(long m) {
+		if (promoted()) {
+			BigInteger bm = BigInteger.valueOf(m);
+			values = new long[coefficients.length];
+			for (int i = 0; i < values.length; ++i) {
+				values[i] = coefficients[i].mod(bm).longValue();
+			}
+			coefficients = null;
+		} else if (values != null) {
+			for (int i = 0; i < values.length; ++i) {
+				values[i] = Math.floorMod(values[i], m);
+			}
+		}
+		modulus = m;
+	}
+
 	public BigInteger substitute(int y) {
 
-		if (coefficients != null) {
+		if (!is_empty()) {
 			BigInteger r = BigInteger.ZERO;
 			BigInteger p = new BigInteger("" + y);
 			for (int i = ymin; i <= ymax; ++i) {
@@ -262,7 +594,7 @@ public class YTerms {
 
 	public String toString() {
 		StringBuilder ss = new StringBuilder();
-		if (coefficients == null) {
+		if (is_empty()) {
 			return "";
 		} else if (ymin != ymax) {
 			ss = ss.append("y^{").append(ymin).append("..").append(ymax).append("}");
@@ -287,7 +619,7 @@ public class YTerms {
 		resize(p.ypower, p.ypowerend);
 		// now, do the addition
 		for (int i = p.ypower; i <= p.ypowerend; ++i) {
-			this.set(i, this.get(i).add(new BigInteger("" + n)));
+			add((i + fpadding) - ymin, n);
 		}
 	}
 
@@ -295,6 +627,94 @@ public class YTerms {
 	/* ======== HELPERS ======= */
 	/* =============================== */
 
+	/**
+	 * Add to the k'th entry of the array, promoting on overflow
+	 */
+	private void add(int k, long v) {
+		if (values != null) {
+			try {
+				values[k] = sum(values[k], residue(v));
+				return;
+			} catch (ArithmeticException e) {
+				promote();
+			}
+		}
+		coefficients[k] = coefficients[k].add(BigInteger.valueOf(v));
+	}
+
+	private void subtract(int k, long v) {
+		if (values != null) {
+			try {
+				values[k] = difference(values[k], residue(v));
+				return;
+			} catch (ArithmeticException e) {
+				promote();
+			}
+		}
+		coefficients[k] = coefficients[k].subtract(BigInteger.valueOf(v));
+	}
+
+	private void multiply(int k, long v) {
+		if (values != null) {
+			try {
+				values[k] = product(values[k], residue(v));
+				return;
+			} catch (ArithmeticException e) {
+				promote();
+			}
+		}
+		coefficients[k] = coefficients[k].multiply(BigInteger.valueOf(v));
+	}
+
+	/**
+	 * The arithmetic on values, which is modular if there is a modulus and otherwise throws an ArithmeticException on overflow. With a
+	 * modulus, the arguments must already be reduced.
+	 */
+	private long sum(long a, long b) {
+		if (modulus != 0) {
+			long r = a + b;
+			return r >= modulus ? r - modulus : r;
+		}
+		return Math.addExact(a, b);
+	}
+
+	private long difference(long a, long b) {
+		if (modulus != 0) {
+			long r = a - b;
+			return r < 0 ? r + modulus : r;
+		}
+		return Math.subtractExact(a, b);
+	}
+
+	private long product(long a, long b) {
+		if (modulus != 0) {
+			return a * b % modulus;
+		}
+		return Math.multiplyExact(a, b);
+	}
+
+	private long residue(long v) {
+		return modulus != 0 ? Math.floorMod(v, modulus) : v;
+	}
+
+	/**
+	 * Move the coefficients into BigIntegers, if they are not there already
+	 */
+	private void promote() {
+		if (values != null) {
+			coefficients = promote(values);
+			values = null;
+		}
+	}
+
+	private static BigInteger[] promote(long[] vs) {
+		BigInteger[] r = new BigInteger[vs.length];
+		for (int i = 0; i < vs.length; ++i) {
+			r[i] = BigInteger.valueOf(vs[i]);
+		}
+		return r;
+	}
+
 	private void resize(int n_ymin, int n_ymax) {
 		if (is_empty()) {
 			alloc(n_ymin, n_ymax);
@@ -317,11 +737,17 @@ public class YTerms {
 				int o_ymin = ymin;
 				int o_ymax = ymax;
 				int o_fpadding = fpadding;
+				long[] o_values = values;
 				BigInteger[] o_coefficients = coefficients;
 				alloc(Math.min(o_ymin, n_ymin), Math.max(o_ymax, n_ymax));
 				// copy old stuff over
-				for (int i = o_ymin; i <= o_ymax; ++i) {
-					this.set(i, o_coefficients[(i + o_fpadding) - o_ymin]);
+				if (o_values != null) {
+					System.arraycopy(o_values, o_fpadding, values, (o_ymin + fpadding) - ymin, (o_ymax - o_ymin) + 1);
+				} else {
+					promote();
+					for (int i = o_ymin; i <= o_ymax; ++i) {
+						this.set(i, o_coefficients[(i + o_fpadding) - o_ymin]);
+					}
 				}
 
 			}
@@ -329,7 +755,9 @@ public class YTerms {
 	}
 
 	private void clone(YTerms src) {
+		modulus = src.modulus;
 		if (src.is_empty()) {
+			values = null;
 			coefficients = null;
 			ymin = 1;
 			ymax = 0;
@@ -343,11 +771,17 @@ public class YTerms {
 
 			int ncoeffs = src.size() + src.fpadding + src.bpadding;
 
-			coefficients = new BigInteger[ncoeffs];
+			if (src.values != null) {
+				values = src.values.clone();
+				coefficients = null;
+			} else {
+				values = null;
+				coefficients = new BigInteger[ncoeffs];
 
-			// copy old stuff over
-			for (int i = 0; i < ncoeffs; ++i) {
-				coefficients[i] = src.coefficients[i];
+				// copy old stuff over
+				for (int i = 0; i < ncoeffs; ++i) {
+					coefficients[i] = src.coefficients[i];
+				}
 			}
 		}
 	}
@@ -359,12 +793,8 @@ public class YTerms {
 		ymin = _ymin;
 		ymax = _ymax;
 //		System.out.println("RAWR " + nyterms + bpadding + fpadding);
-		coefficients = new BigInteger[nyterms + bpadding + fpadding];
-		// why the following line is needed is just plain
-		// wierd.
-		for (int i = 0; i < nyterms + fpadding + bpadding; ++i) {
-			coefficients[i] = BigInteger.ZERO;
-		}
+		values = new long[nyterms + bpadding + fpadding];
+		coefficients = null;
 	}
 
 	/*
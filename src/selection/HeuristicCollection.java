@@ -1,12 +1,12 @@
 package selection;
 
+import graph.EdgeCursor;
 import graph.Graph;
 
 import java.util.ArrayList;
 import java.util.List;
 
 import util.Debug;
-import util.Pair;
 import util.Triple;
 
 public class HeuristicCollection implements EdgeSelection{
@@ -39,12 +39,13 @@ public class HeuristicCollection implements EdgeSelection{
 			int nedges = graph.numEdges();
 			rtarget = (int) (nedges * Math.random());
 		} else if (edge_selection_heuristic == CUT) {
+			EdgeCursor c = graph.cursor();
 			for (int i : graph.vertices()) {
 				int head = i;
 
-				for (Pair<Integer, Integer> j : graph.edges(i)) {
-					int tail = j.first();
-					int count = j.second();
+				for (c.start(i); c.next();) {
+					int tail = c.vertex();
+					int count = c.count();
 					int cost = Integer.MAX_VALUE;
 
 					if (head < tail) { // to avoid duplicates
@@ -77,14 +78,15 @@ public class HeuristicCollection implements EdgeSelection{
 			heuristic = VERTEX_ORDER;
 		}
 
+		EdgeCursor c = graph.cursor();
 		for (int i : graph.vertices()) {
 			int head = i;
 			int headc = graph.numUnderlyingEdges(head);
 
-			for (Pair<Integer, Integer> j : graph.edges(i)) {
-				int tail = j.first();
+			for (c.start(i); c.next();) {
+				int tail = c.vertex();
 				int tailc = graph.numUnderlyingEdges(tail);
-				int count = j.second();
+				int count = c.count();
 
 				if (head < tail) { // to avoid duplicates
 					int cost = 0;
@@ -1,6 +1,6 @@
 package selection;
+import graph.EdgeCursor;
 import graph.Graph;
-import util.Pair;
 import util.Triple;
 
 public class RandomEdge implements EdgeSelection{
@@ -15,12 +15,13 @@ public class RandomEdge implements EdgeSelection{
 		int nedges = graph.numEdges();
 		rtarget = (int) (((double) nedges * Math.random()) / (1.0 + 1.0));
 
+		EdgeCursor c = graph.cursor();
 		for (int i : graph.vertices()) {
 			int head = i;
 
-			for (Pair<Integer, Integer> j : graph.edges(i)) {
-				int tail = j.first();
-				int count = j.second();
+			for (c.start(i); c.next();) {
+				int tail = c.vertex();
+				int count = c.count();
 
 				if (head < tail) { // to avoid duplicates
 					int cost = 1;
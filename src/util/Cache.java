@@ -2,86 +2,536 @@ package util;
 
 import graph.Graph;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 import polynomial.FactorPoly;
+import polynomial.PackedPoly;
 
+/**
+ * Maps graphs (up to isomorphism) to their Tutte polynomials. The cache is split into lock striped segments selected by the
+ * fingerprint of the graph, so workers only contend when they hit the same segment, and the canonical labelling itself is always done
+ * outside of any lock. Graphs are held as their GraphKey and polynomials as PackedPolys, rather than as copies of the Graph and
+ * FactorPoly objects.
+ *
+ * Entries are grouped by fingerprint, and canonical labelling is put off until it is needed. A graph whose fingerprint has not been
+ * seen is stored under a non canonical key without being labelled at all. Only once a second graph with the same fingerprint turns
+ * up are both labelled and compared. With a tier, which is keyed canonically, every graph is labelled.
+ *
+ * An entry is created as soon as some worker starts computing a graph. Another worker reaching an isomorphic graph before that
+ * finishes computes it again itself rather than waiting, since the owner may be joining a task buried in the waiter's own stack.
+ *
+ * The cache holds at most a fixed number of bytes, measured from the cached graphs and polynomials themselves. Once it goes over, the
+ * EvictionPolicy picks entries to throw away until it is back under LOW_WATER of the budget. Evicted entries are handed down to the
+ * CacheTier, if there is one, which is checked before any graph is computed.
+ */
 public class Cache {
-	private Map<Graph, FactorPoly> data;
-	private static final long MIN_MEM = 50 * 1024 * 1024;
-	private double delete_prop = 0.5;
-	private long acesses = 0;
-	private long misses = 0;
+	private static final int DEFAULT_SEGMENTS = 64;
+	private static final double LOW_WATER = 0.9;
+	/**
+	 * Map node, entry and future objects
+	 */
+	private static final long ENTRY_OVERHEAD = 32 + 64 + 24;
 
+	private final Segment[] segments;
+	private final EvictionPolicy policy;
+	private final CacheTier tier;
+	private final long budget;
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicBoolean evicting = new AtomicBoolean();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final LongAdder acesses = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	/**
+	 * Graphs computed again because an isomorphic one was still being computed by another worker
+	 */
+	private final LongAdder duplicates = new LongAdder();
+	private final LongAdder tierHits = new LongAdder();
+	private final LongAdder unlabelled = new LongAdder();
+	private final LongAdder deferred = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * A cost aware cache using half of the maximum heap
+	 */
 	public Cache() {
-		this.data = new HashMap<Graph, FactorPoly>();
+		this(Runtime.getRuntime().maxMemory() / 2, new CostAwarePolicy(CostAwarePolicy.TIME), DEFAULT_SEGMENTS);
+	}
+
+	/**
+	 * @param budget
+	 *            The maximum number of bytes held by the cache
+	 * @param policy
+	 *            Chooses entries to evict
+	 * @param concurrency
+	 *            The expected number of concurrent workers. This is rounded up to a power of two to give the number of segments.
+	 */
+	public Cache(long budget, EvictionPolicy policy, int concurrency) {
+		this(budget, policy, concurrency, null);
 	}
 
-	public void add(Graph g, FactorPoly f) {
-		long mem = Runtime.getRuntime().freeMemory();
-		if (mem < MIN_MEM) {
-			System.out.println(mem / (1024.0 * 1024.0));
-			cleanCache();
+	/**
+	 * @param budget
+	 *            The maximum number of bytes held by the cache
+	 * @param policy
+	 *            Chooses entries to evict
+	 * @param concurrency
+	 *            The expected number of concurrent workers. This is rounded up to a power of two to give the number of segments.
+	 * @param tier
+	 *            Where evicted entries go, or null to drop them
+	 */
+	public Cache(long budget, EvictionPolicy policy, int concurrency, CacheTier tier) {
+		this.budget = budget;
+		this.policy = policy;
+		this.tier = tier;
+		int n = 1;
+		while (n < concurrency) {
+			n <<= 1;
+		}
+		segments = new Segment[n];
+		for (int i = 0; i < n; i++) {
+			segments[i] = new Segment();
 		}
-		Graph gclone = new Graph(g);
-		FactorPoly fclone = new FactorPoly(f);
-		data.put(gclone, fclone);
 	}
 
+	/**
+	 * Look up the polynomial for g, computing it with f if no isomorphic graph has been seen before. If another worker is still
+	 * computing an isomorphic graph then g is computed with f as well, but the result is not cached. These duplicate evaluations are
+	 * counted separately from misses in statistics().
+	 *
+	 * The key of the graph is taken before f is applied, so f is free to modify it.
+	 *
+	 * @param g
+	 *            The graph to look up
+	 * @param f
+	 *            Computes the polynomial of g
+	 * @return A polynomial owned by the caller
+	 */
+	public FactorPoly computeIfAbsent(Graph g, Function<Graph, FactorPoly> f) {
+		int fp = g.fingerprint();
+		Segment s = segmentFor(fp);
+		acesses.increment();
+
+		// the tier is keyed canonically, so then everything is labelled
+		GraphKey key = tier != null ? g.key() : null;
+		GraphKey raw = null;
+		Entry entry = null;
+		boolean owner = false;
+		while (entry == null) {
+			boolean empty;
+			synchronized (s) {
+				List<Entry> bucket = s.buckets.get(fp);
+				empty = bucket == null;
+				if (empty && (key != null || raw != null)) {
+					entry = new Entry(fp, key, key == null ? raw : null, g.numEdges());
+					bucket = new ArrayList<Entry>(2);
+					bucket.add(entry);
+					s.buckets.put(fp, bucket);
+					owner = true;
+				} else if (!empty && key != null && labelled(bucket)) {
+					entry = find(bucket, key);
+					if (entry == null) {
+						entry = new Entry(fp, key, null, g.numEdges());
+						bucket.add(entry);
+						owner = true;
+					} else {
+						entry.hit(clock.incrementAndGet());
+						if (entry.result.isDone()) {
+							policy.accessed(entry);
+						}
+					}
+				}
+			}
+			if (entry == null) {
+				if (empty) {
+					raw = new GraphKey(g);
+				} else {
+					if (key == null) {
+						key = g.key();
+					}
+					labelBucket(s, fp);
+				}
+			}
+		}
+		if (!owner) {
+			if (entry.result.isDone() && !entry.result.isCompletedExceptionally()) {
+				return entry.result.join().unpack();
+			}
+			duplicates.increment();
+			return f.apply(g);
+		}
+		if (key == null) {
+			unlabelled.increment();
+		}
+
+		FactorPoly r;
+		PackedPoly value = null;
+		long start = System.nanoTime();
+		try {
+			if (tier != null) {
+				value = tier.get(key);
+			}
+			if (value != null) {
+				tierHits.increment();
+				r = value.unpack();
+			} else {
+				misses.increment();
+				r = f.apply(g);
+				value = new PackedPoly(r);
+			}
+		} catch (RuntimeException e) {
+			abandon(s, entry, e);
+			throw e;
+		} catch (Error e) {
+			abandon(s, entry, e);
+			throw e;
+		}
+		long size = ENTRY_OVERHEAD + (key != null ? key : raw).sizeInBytes() + value.sizeInBytes();
+		synchronized (s) {
+			entry.complete(size, System.nanoTime() - start, clock.incrementAndGet());
+			policy.accessed(entry);
+		}
+		entry.result.complete(value);
+		if (bytes.addAndGet(size) > budget) {
+			evict();
+		}
+		return r;
+	}
+
+	/**
+	 * Look up the polynomial for g without computing it. A graph which is still being computed by another worker counts as missing.
+	 * Entries found in the tier are not brought back into the cache.
+	 *
+	 * @param g
+	 *            The graph to look up
+	 * @return A polynomial owned by the caller or null
+	 */
 	public FactorPoly get(Graph g) {
-		acesses++;
-		FactorPoly f = data.get(g);
-
-		// FactorPoly check = null;
-		// for(Map.Entry<Graph, FactorPoly> i: data.entrySet()){
-		// if(g.equals(i.getKey())){
-		// if(g.hashCode() != i.getKey().hashCode() || !g.toString().equals(i.getKey().toString())){
-		// throw new RuntimeException("Graph Equality is broken");
-		// }
-		// if(check != null){
-		// throw new RuntimeException("Cache contains double ups");
-		// }
-		// check = i.getValue();
-		// System.out.println("matched");
-		// System.out.println(g);
-		// System.out.println(check.toString());
-		// }
-		// }
-		//
-		// if(check == null && f == null){
-		// //all is well
-		// }else if(check == null || f == null){
-		// throw new RuntimeException("Get Failed one is null, the other isn't");
-		// }else if(!check.toString().equals(f.toString())){
-		// throw new RuntimeException("Polynomals are different");
-		// }
-
-		if (f == null) {
-			misses++;
-			return null;
-		}
-		return new FactorPoly(f);
-	}
-
-	private void cleanCache() {
-		System.out.println("Cleaning cache");
-		Iterator<Map.Entry<Graph, FactorPoly>> i = data.entrySet().iterator();
-		if (i.hasNext()) {
-			for (i.next(); i.hasNext(); i.next()) {
-				if (Math.random() < delete_prop) {
-					i.remove();
+		int fp = g.fingerprint();
+		Segment s = segmentFor(fp);
+		acesses.increment();
+		GraphKey key = null;
+		Entry entry = null;
+		while (true) {
+			synchronized (s) {
+				List<Entry> bucket = s.buckets.get(fp);
+				if (bucket == null) {
+					break;
+				}
+				if (key != null && labelled(bucket)) {
+					entry = find(bucket, key);
+					if (entry != null && entry.result.isDone() && !entry.result.isCompletedExceptionally()) {
+						entry.hit(clock.incrementAndGet());
+						policy.accessed(entry);
+					} else {
+						entry = null;
+					}
+					break;
+				}
+			}
+			if (key == null) {
+				key = g.key();
+			}
+			labelBucket(s, fp);
+		}
+		if (entry != null) {
+			return entry.result.join().unpack();
+		}
+		if (tier != null) {
+			PackedPoly value = tier.get(g.key());
+			if (value != null) {
+				tierHits.increment();
+				return value.unpack();
+			}
+		}
+		misses.increment();
+		return null;
+	}
+
+	private Segment segmentFor(int fingerprint) {
+		int h = fingerprint;
+		h ^= (h >>> 16);
+		return segments[h & (segments.length - 1)];
+	}
+
+	/**
+	 * @return True if every entry in the bucket has its canonical key
+	 */
+	private static boolean labelled(List<Entry> bucket) {
+		for (Entry e : bucket) {
+			if (e.key == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Entry find(List<Entry> bucket, GraphKey key) {
+		for (Entry e : bucket) {
+			if (key.equals(e.key)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Give every entry with a given fingerprint its canonical key, labelling outside the lock
+	 */
+	private void labelBucket(Segment s, int fp) {
+		List<Entry> todo = new ArrayList<Entry>();
+		synchronized (s) {
+			List<Entry> bucket = s.buckets.get(fp);
+			if (bucket != null) {
+				for (Entry e : bucket) {
+					if (e.key == null) {
+						todo.add(e);
+					}
+				}
+			}
+		}
+		for (Entry e : todo) {
+			GraphKey key = e.raw.graph().key();
+			synchronized (s) {
+				if (e.key == null) {
+					e.key = key;
+					deferred.increment();
 				}
 			}
 		}
+	}
+
+	/**
+	 * @return The canonical key of an entry, labelling it if that has not been done yet
+	 */
+	private static GraphKey keyOf(Segment s, Entry e) {
+		GraphKey key;
+		synchronized (s) {
+			key = e.key;
+		}
+		return key != null ? key : e.raw.graph().key();
+	}
+
+	/**
+	 * Take an entry out of its segment
+	 *
+	 * @return False if it was not there
+	 */
+	private static boolean remove(Segment s, Entry entry) {
+		List<Entry> bucket = s.buckets.get(entry.fingerprint);
+		if (bucket == null || !bucket.remove(entry)) {
+			return false;
+		}
+		if (bucket.isEmpty()) {
+			s.buckets.remove(entry.fingerprint);
+		}
+		return true;
+	}
 
-		System.gc();
+	private void abandon(Segment s, Entry entry, Throwable t) {
+		synchronized (s) {
+			remove(s, entry);
+		}
+		entry.result.completeExceptionally(t);
+	}
+
+	/**
+	 * Throw away the lowest priority entries until the cache is back under its low water mark. Only one worker evicts at a time, the
+	 * others carry on regardless.
+	 */
+	private void evict() {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			// take a snapshot of the priorities, since they can change
+			// whilst sorting
+			List<Victim> victims = new ArrayList<Victim>();
+			for (Segment s : segments) {
+				synchronized (s) {
+					for (List<Entry> bucket : s.buckets.values()) {
+						for (Entry e : bucket) {
+							// entries still being computed have workers waiting on them
+							if (e.size > 0) {
+								victims.add(new Victim(s, e, policy.priority(e)));
+							}
+						}
+					}
+				}
+			}
+			Collections.sort(victims, new Comparator<Victim>() {
+				@Override
+				public int compare(Victim a, Victim b) {
+					return Double.compare(a.priority, b.priority);
+				}
+			});
+
+			long target = (long) (budget * LOW_WATER);
+			for (int i = 0; i < victims.size() && bytes.get() > target; i++) {
+				Victim v = victims.get(i);
+				boolean removed = false;
+				synchronized (v.segment) {
+					if (remove(v.segment, v.entry)) {
+						policy.evicted(v.entry);
+						bytes.addAndGet(-v.entry.size);
+						evictions.increment();
+						removed = true;
+					}
+				}
+				if (removed && tier != null) {
+					tier.put(keyOf(v.segment, v.entry), v.entry.result.join());
+				}
+			}
+		} finally {
+			evicting.set(false);
+		}
 	}
 
 	public String statistics() {
-		return String.format("%d Cache Access Attempts\n%.2f%% Cache Hits\n%d Cache Hits", acesses,
-				100.0 * ((double) (acesses - misses) / (double) acesses), acesses - misses);
+		long a = acesses.sum();
+		long m = misses.sum() + duplicates.sum();
+		String s = String.format("%d Cache Access Attempts\n%.2f%% Cache Hits\n%d Cache Hits\n%d Duplicate Evaluations\n%d Evictions\n%.2f MB Cached",
+				a, 100.0 * ((double) (a - m) / (double) a), a - m, duplicates.sum(), evictions.sum(), bytes.get() / (1024.0 * 1024.0));
+		if (tier != null) {
+			s += String.format("\n%d Tier Hits\n", tierHits.sum()) + tier.statistics();
+		} else {
+			s += String.format("\n%d Entries Never Labelled\n%d Labellings Deferred", unlabelled.sum() - deferred.sum(), deferred.sum());
+		}
+		return s;
+	}
+
+	/**
+	 * Hand everything still held down to the tier, so a persistent tier keeps it, and then release the tier. Only the first call
+	 * does anything.
+	 */
+	public void close() {
+		if (tier == null || !closed.compareAndSet(false, true)) {
+			return;
+		}
+		for (Segment s : segments) {
+			List<Entry> entries = new ArrayList<Entry>();
+			synchronized (s) {
+				for (List<Entry> bucket : s.buckets.values()) {
+					entries.addAll(bucket);
+				}
+			}
+			for (Entry e : entries) {
+				PackedPoly value = e.result.isCompletedExceptionally() ? null : e.result.getNow(null);
+				if (value != null) {
+					tier.put(keyOf(s, e), value);
+				}
+			}
+		}
+		tier.close();
+	}
+
+	/**
+	 * A cached graph along with the bookkeeping used by the eviction policies. Everything except the result is only accessed with the
+	 * lock of its segment held.
+	 */
+	public static final class Entry {
+		final int fingerprint;
+		/**
+		 * The canonical key, or null until the entry is labelled, in which case raw holds the graph
+		 */
+		GraphKey key;
+		final GraphKey raw;
+		final CompletableFuture<PackedPoly> result = new CompletableFuture<PackedPoly>();
+		private final int numEdges;
+		private long size;
+		private long cost;
+		private long hits;
+		private long lastAccess;
+		private double weight;
+
+		Entry(int fingerprint, GraphKey key, GraphKey raw, int numEdges) {
+			this.fingerprint = fingerprint;
+			this.key = key;
+			this.raw = raw;
+			this.numEdges = numEdges;
+		}
+
+		void hit(long tick) {
+			hits++;
+			lastAccess = tick;
+		}
+
+		void complete(long size, long cost, long tick) {
+			this.size = size;
+			this.cost = cost;
+			this.lastAccess = tick;
+		}
+
+		/**
+		 * @return The number of bytes used by this entry, or 0 if it is still being computed
+		 */
+		public long size() {
+			return size;
+		}
+
+		/**
+		 * @return The time in nanoseconds it took to compute this entry
+		 */
+		public long cost() {
+			return cost;
+		}
+
+		/**
+		 * @return The number of edges in the cached graph
+		 */
+		public int numEdges() {
+			return numEdges;
+		}
+
+		/**
+		 * @return The number of times this entry has been hit
+		 */
+		public long hits() {
+			return hits;
+		}
+
+		/**
+		 * @return When this entry was last used, as a count of cache operations
+		 */
+		public long lastAccess() {
+			return lastAccess;
+		}
+
+		/**
+		 * @return A value maintained by the eviction policy
+		 */
+		public double weight() {
+			return weight;
+		}
+
+		public void setWeight(double weight) {
+			this.weight = weight;
+		}
+	}
+
+	private static class Victim {
+		final Segment segment;
+		final Entry entry;
+		final double priority;
+
+		Victim(Segment segment, Entry entry, double priority) {
+			this.segment = segment;
+			this.entry = entry;
+			this.priority = priority;
+		}
 	}
 
+	private static class Segment {
+		final Map<Integer, List<Entry>> buckets = new HashMap<Integer, List<Entry>>();
+	}
 }
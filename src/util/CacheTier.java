@@ -0,0 +1,40 @@
+package util;
+
+import polynomial.PackedPoly;
+
+/**
+ * A lower level of storage behind the Cache. The Cache checks its tier before computing a graph it does not hold, and hands entries
+ * it evicts down to it. Implementations must be safe to use from several workers at once.
+ * 
+ * @see Cache
+ */
+public interface CacheTier {
+	/**
+	 * Look up a graph
+	 * 
+	 * @param key
+	 *            The canonical key of the graph
+	 * @return Its polynomial, or null if this tier does not hold it
+	 */
+	public PackedPoly get(GraphKey key);
+
+	/**
+	 * Offer an entry to this tier, which is free to drop it
+	 * 
+	 * @param key
+	 *            The canonical key of the graph
+	 * @param value
+	 *            Its polynomial
+	 */
+	public void put(GraphKey key, PackedPoly value);
+
+	/**
+	 * @return Human readable statistics about this tier
+	 */
+	public String statistics();
+
+	/**
+	 * Release any resources held by this tier
+	 */
+	public void close();
+}
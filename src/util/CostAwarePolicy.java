@@ -0,0 +1,53 @@
+package util;
+
+/**
+ * Greedy Dual Size eviction. Each entry is worth the cost of recomputing it per byte it occupies, so small graphs which were expensive
+ * to compute are kept over large cheap ones. An entry's worth is topped up by the worth of the last evicted entry every time it is
+ * used, which ages out entries that were expensive but are no longer hit.
+ */
+public class CostAwarePolicy implements EvictionPolicy {
+	/**
+	 * Cost an entry by the size of the search tree below it, that is 2^numEdges
+	 */
+	public static final int EDGES = 0;
+	/**
+	 * Cost an entry by the time it took to compute
+	 */
+	public static final int TIME = 1;
+
+	private final int cost;
+	private volatile double inflation = 0;
+
+	public CostAwarePolicy(int cost) {
+		this.cost = cost;
+	}
+
+	private double cost(Cache.Entry e) {
+		switch (cost) {
+		case EDGES:
+			return Math.pow(2, e.numEdges());
+		case TIME:
+			return e.cost();
+		default:
+			throw new IllegalArgumentException("Unknown cost " + cost);
+		}
+	}
+
+	@Override
+	public void accessed(Cache.Entry e) {
+		e.setWeight(inflation + cost(e) / e.size());
+	}
+
+	@Override
+	public double priority(Cache.Entry e) {
+		return e.weight();
+	}
+
+	@Override
+	public void evicted(Cache.Entry e) {
+		// racy, but only ever makes the inflation slightly smaller
+		if (e.weight() > inflation) {
+			inflation = e.weight();
+		}
+	}
+}
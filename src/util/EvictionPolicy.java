@@ -0,0 +1,34 @@
+package util;
+
+/**
+ * Decides which entries are thrown out once a Cache goes over its byte budget. All methods are called with the lock of the entry's
+ * segment held, so an implementation only needs to worry about state shared between entries.
+ * 
+ * @see Cache
+ */
+public interface EvictionPolicy {
+	/**
+	 * Called when an entry is first added and again on every hit
+	 * 
+	 * @param e
+	 *            The entry
+	 */
+	public void accessed(Cache.Entry e);
+
+	/**
+	 * The priority of an entry. Entries with the lowest priority are evicted first.
+	 * 
+	 * @param e
+	 *            The entry
+	 * @return Its priority
+	 */
+	public double priority(Cache.Entry e);
+
+	/**
+	 * Called for each entry which is evicted
+	 * 
+	 * @param e
+	 *            The entry
+	 */
+	public void evicted(Cache.Entry e);
+}
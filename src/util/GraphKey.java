@@ -0,0 +1,152 @@
+package util;
+
+import graph.Graph;
+
+import java.util.Arrays;
+
+/**
+ * A compact canonical form of a graph, used to key the Cache. Only the upper triangle of the canonically relabelled adjacency matrix
+ * is stored, over the live vertices only, with each cell just wide enough for the largest multiplicity in the graph. Isomorphic graphs
+ * have equal keys.
+ */
+public final class GraphKey {
+	private static final int HEADER = 1;
+
+	/**
+	 * words[0] holds the number of vertices (low 32 bits) and the cell width (high 32 bits), the cells follow
+	 */
+	private final long[] words;
+	private final int hash;
+
+	/**
+	 * Pack a graph under its canonical labelling
+	 * 
+	 * @param g
+	 *            The graph
+	 * @param l
+	 *            A canonical labelling of g
+	 */
+	public GraphKey(Graph g, Label l) {
+		int n = l.newDomain();
+		int max = 1;
+		for (int i = 0; i < n; i++) {
+			for (int j = i; j < n; j++) {
+				max = Math.max(max, g.numEdges(l.oldName(i), l.oldName(j)));
+			}
+		}
+		int width = 32 - Integer.numberOfLeadingZeros(max);
+		long cells = (long) n * (n + 1) / 2;
+		words = new long[HEADER + (int) ((cells * width + 63) / 64)];
+		words[0] = n | ((long) width << 32);
+
+		long bit = 0;
+		for (int i = 0; i < n; i++) {
+			for (int j = i; j < n; j++) {
+				long v = g.numEdges(l.oldName(i), l.oldName(j));
+				int w = HEADER + (int) (bit >>> 6);
+				int index = (int) (bit & 63);
+				words[w] |= v << index;
+				if (index + width > 64) {
+					words[w + 1] |= v >>> (64 - index);
+				}
+				bit += width;
+			}
+		}
+		hash = Arrays.hashCode(words);
+	}
+
+	/**
+	 * Pack a graph as it is currently labelled. This is not canonical, so isomorphic graphs will generally have different keys, but
+	 * the graph can be rebuilt with graph() and labelled later.
+	 * 
+	 * @param g
+	 *            The graph
+	 */
+	public GraphKey(Graph g) {
+		this(g, identity(g));
+	}
+
+	private static Label identity(Graph g) {
+		Label l = new Label(g.numVertices(), g.domainSize());
+		int i = 0;
+		for (int v : g.vertices()) {
+			l.set(v, i++);
+		}
+		return l;
+	}
+
+	/**
+	 * Rebuild a key from its packed words
+	 * 
+	 * @param words
+	 *            As returned by words()
+	 */
+	public GraphKey(long[] words) {
+		this.words = words;
+		this.hash = Arrays.hashCode(words);
+	}
+
+	/**
+	 * @return The packed form of this key, which must not be modified
+	 */
+	public long[] words() {
+		return words;
+	}
+
+	/**
+	 * @return The number of vertices in the graph
+	 */
+	public int numVertices() {
+		return (int) words[0];
+	}
+
+	/**
+	 * Rebuild the packed graph, with its vertices numbered 0..numVertices()-1 as in the key
+	 * 
+	 * @return A new graph
+	 */
+	public Graph graph() {
+		int n = numVertices();
+		int width = (int) (words[0] >>> 32);
+		long mask = (1L << width) - 1;
+		Graph g = new Graph(n);
+		long bit = 0;
+		for (int i = 0; i < n; i++) {
+			for (int j = i; j < n; j++) {
+				int w = HEADER + (int) (bit >>> 6);
+				int index = (int) (bit & 63);
+				long v = words[w] >>> index;
+				if (index + width > 64) {
+					v |= words[w + 1] << (64 - index);
+				}
+				v &= mask;
+				if (v > 0) {
+					g.addEdge(i, j, (int) v);
+				}
+				bit += width;
+			}
+		}
+		return g;
+	}
+
+	/**
+	 * An estimate of the heap space taken up by this key
+	 * 
+	 * @return Size in bytes
+	 */
+	public long sizeInBytes() {
+		return 24 + 16 + 8 * words.length;
+	}
+
+	public int hashCode() {
+		return hash;
+	}
+
+	public boolean equals(Object o) {
+		if (o instanceof GraphKey) {
+			GraphKey k = (GraphKey) o;
+			return hash == k.hash && Arrays.equals(words, k.words);
+		}
+		return false;
+	}
+}
@@ -0,0 +1,194 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+import polynomial.PackedPoly;
+
+/**
+ * A read only table of precomputed Tutte polynomials for small graphs, as built by TableGenerator. The table is memory mapped, so it
+ * costs no heap and is shared between processes through the page cache.
+ *
+ * The file is a header (magic number, format version, the largest number of vertices and edges covered and the number of index slots),
+ * then an open addressing index of slots each holding the hash of a key and the offset of its record, then the records. A record is
+ * the number of key words, the number of value bytes, the key words and the value bytes.
+ */
+public class GraphTable {
+	private static final int MAGIC = 0x5454424C; // "TTBL"
+	/**
+	 * Must change whenever GraphKey or PackedPoly change their layout, or the canonical labelling changes
+	 */
+	public static final int VERSION = 1;
+	private static final int HEADER_SIZE = 20;
+	private static final int SLOT_SIZE = 16;
+
+	private final MappedByteBuffer data;
+	private final int maxVertices;
+	private final int maxEdges;
+	private final int slots;
+
+	/**
+	 * Map a table into memory
+	 *
+	 * @param f
+	 *            A table written by write()
+	 * @throws IOException
+	 */
+	public GraphTable(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			if (raf.length() > Integer.MAX_VALUE) {
+				throw new RuntimeException(f + " is too large to be a graph table");
+			}
+			data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			// the mapping stays valid after the file is closed
+			raf.close();
+		}
+		if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+			throw new RuntimeException(f + " is not a graph table");
+		}
+		if (data.getInt(4) != VERSION) {
+			throw new RuntimeException(f + " is a version " + data.getInt(4) + " graph table, expected version " + VERSION);
+		}
+		maxVertices = data.getInt(8);
+		maxEdges = data.getInt(12);
+		slots = data.getInt(16);
+	}
+
+	/**
+	 * @return The largest number of vertices of any graph in the table
+	 */
+	public int maxVertices() {
+		return maxVertices;
+	}
+
+	/**
+	 * @return The largest number of edges of any graph in the table
+	 */
+	public int maxEdges() {
+		return maxEdges;
+	}
+
+	/**
+	 * Look up a graph
+	 *
+	 * @param key
+	 *            The canonical key of the graph
+	 * @return Its polynomial, or null if it is not in the table
+	 */
+	public PackedPoly get(GraphKey key) {
+		long[] words = key.words();
+		int hash = key.hashCode();
+		for (int s = slot(hash, slots);; s = (s + 1) & (slots - 1)) {
+			int base = HEADER_SIZE + s * SLOT_SIZE;
+			long loc = data.getLong(base);
+			if (loc == 0) {
+				return null;
+			}
+			if (data.getInt(base + 8) != hash) {
+				continue;
+			}
+			int pos = (int) loc;
+			if (!matches(pos, words)) {
+				continue;
+			}
+			byte[] value = new byte[data.getInt(pos + 4)];
+			pos += 8 + 8 * words.length;
+			for (int i = 0; i < value.length; i++) {
+				value[i] = data.get(pos + i);
+			}
+			return new PackedPoly(value);
+		}
+	}
+
+	private boolean matches(int pos, long[] words) {
+		if (data.getInt(pos) != words.length) {
+			return false;
+		}
+		pos += 8;
+		for (int i = 0; i < words.length; i++) {
+			if (data.getLong(pos + 8 * i) != words[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int slot(int hash, int slots) {
+		hash ^= (hash >>> 16);
+		hash *= 0x85EBCA6B;
+		hash ^= (hash >>> 13);
+		return hash & (slots - 1);
+	}
+
+	/**
+	 * Write a table
+	 *
+	 * @param f
+	 *            Where to write it
+	 * @param maxVertices
+	 *            The largest number of vertices of any graph in the table
+	 * @param maxEdges
+	 *            The largest number of edges of any graph in the table
+	 * @param polys
+	 *            The contents of the table
+	 * @throws IOException
+	 */
+	public static void write(File f, int maxVertices, int maxEdges, Map<GraphKey, PackedPoly> polys) throws IOException {
+		int slots = 16;
+		while (slots < polys.size() * 2) {
+			slots <<= 1;
+		}
+		long[] locs = new long[slots];
+		int[] hashes = new int[slots];
+		long pos = HEADER_SIZE + (long) slots * SLOT_SIZE;
+		for (Map.Entry<GraphKey, PackedPoly> e : polys.entrySet()) {
+			int hash = e.getKey().hashCode();
+			int s = slot(hash, slots);
+			while (locs[s] != 0) {
+				s = (s + 1) & (slots - 1);
+			}
+			locs[s] = pos;
+			hashes[s] = hash;
+			pos += 8 + 8 * e.getKey().words().length + e.getValue().bytes().length;
+		}
+		if (pos > Integer.MAX_VALUE) {
+			throw new RuntimeException("Graph table would be too large");
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(maxVertices);
+			out.writeInt(maxEdges);
+			out.writeInt(slots);
+			for (int s = 0; s < slots; s++) {
+				out.writeLong(locs[s]);
+				out.writeInt(hashes[s]);
+				out.writeInt(0);
+			}
+			// records go in the same order as their offsets were handed out
+			for (Map.Entry<GraphKey, PackedPoly> e : polys.entrySet()) {
+				long[] words = e.getKey().words();
+				byte[] bytes = e.getValue().bytes();
+				out.writeInt(words.length);
+				out.writeInt(bytes.length);
+				for (long w : words) {
+					out.writeLong(w);
+				}
+				out.write(bytes);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
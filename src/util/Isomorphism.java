@@ -1,326 +1,582 @@
 package util;
 
+import graph.AdjacencyMatrix;
 import graph.Graph;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
-import java.util.TreeSet;
 
 /**
  * Treats all graphs as simple (this is clearly not a problem, as it finds a labelling)
- * 
+ *
+ * The search is McKay's: the unit partition is refined to an equitable partition, and then each vertex of the first smallest
+ * non trivial cell is individualised and refined again, recursively, until the partition is discrete. The discrete partition giving
+ * the largest relabelled adjacency matrix is the canonical labelling.
+ *
+ * Partitions are held as an array of vertices in which each cell is a contiguous run, kept in increasing order of vertex, with the
+ * length of each cell stored at its first position. All the arrays are allocated once per search, so refining does not allocate.
+ *
+ * The adjacency matrix is also held bit sliced: for each vertex and each bit of the multiplicities there is a bitset of the vertices
+ * whose multiplicity has that bit set. The number of edges from a vertex into a cell is then a sum of Long.bitCount over the words of
+ * those bitsets masked by the cell, rather than a sum over the vertices of the cell.
+ *
+ * Whenever two leaves give the same matrix, the mapping between them is an automorphism of the graph. As in nauty, a child of a node
+ * is skipped if an automorphism fixing every vertex individualised on the way to that node maps it to a child already explored, since
+ * its subtree is then just a relabelling of one already seen and holds the same matrices.
+ *
+ * Singleton cells never move, so at an internal node every matrix cell between two singletons is already fixed for all the leaves
+ * below it. The matrix is compared against the best so far one word at a time, for as long as the words are fixed, and the node is
+ * abandoned if it is already smaller. Leaves are compared the same way, without building their matrix unless it is the new best.
+ *
+ * A graph with a multiplicity of AdjacencyMatrix.OVERFLOW or more does not fit the packed matrix, so for those the matrix is held as
+ * one int per cell and compared cell by cell instead.
+ *
+ * None of this changes which matrix is largest, so this gives exactly the same matrix as the original set based search, which is kept
+ * in SetIsomorphism to check against, although the labelling achieving it may differ.
+ *
  * @author roma
- * 
+ *
  */
 public class Isomorphism {
+	/**
+	 * Enough generators to prune the search for any graph we see, whilst bounding the work in each orbit computation
+	 */
+	private static final int MAX_AUTOMORPHISMS = 64;
 
 	public static int[] canonicalLabel(Graph g) {
-
-		// Create an initial partition
-		Set<Integer> cell = new TreeSet<Integer>();
-		for (int i : g.vertices()) {
-			cell.add(i);
-		}
-		List<Set<Integer>> unitpart = new ArrayList<Set<Integer>>();
-		List<Set<Integer>> alpha = new ArrayList<Set<Integer>>();
-		unitpart.add(cell);
-		alpha.add(cell);
-
-		Triple<List<Set<Integer>>, int[], int[]> resultTriple = null;
-		List<Set<Integer>> partition = null;
-		try {
-			partition = equitableRefinement(g, unitpart, alpha);
-			// print(partition, null);
-
-			resultTriple = searchTree(g, partition, null);
-		} catch (Error e) {
-			System.out.println(g.numEdges());
-			System.out.println(partition);
-			System.out.println(resultTriple);
-			throw e;
-		}
-		// System.out.println();
-		// print(resultTriple.first, resultTriple.second);
-		return resultTriple.third;
+		Search s = new Search(g);
+		s.run();
+		return s.bestLabel;
 	}
 
 	/**
-	 * Triple<Partition, value, edges>
-	 * 
+	 * Find the canonical labelling of a graph. Isomorphic graphs relabelled by their canonical labellings are identical.
+	 *
 	 * @param g
-	 * @param partition
-	 * @param soFar
-	 * @return
+	 *            The graph to label
+	 * @return Mapping from the vertices of g to 0..numVertices-1
 	 */
-	private static Triple<List<Set<Integer>>, int[], int[]> searchTree(Graph g, List<Set<Integer>> partition,
-			Triple<List<Set<Integer>>, int[], int[]> soFar) {
-		if (discrete(partition)) {
-			int[] label = partitionToMatrix(partition, g.domainSize(), g);
-			// int[] label = partitionToLabel(partition, g.domainSize());
-			if (soFar == null) {
-				return new Triple<List<Set<Integer>>, int[], int[]>(partition, label, label);
-			} else {
-				// int[] value = partitionToValue(partition, g, label);
-				if (greaterThan(label, soFar.second)) {
-					return new Triple<List<Set<Integer>>, int[], int[]>(partition, label, label);
+	public static Label canonicalLabelling(Graph g) {
+		Search s = new Search(g);
+		s.run();
+		return s.label();
+	}
+
+	/**
+	 * The state of one canonical labelling search. Vertices are renumbered 0..n-1 in increasing order, so that ordering cells by the
+	 * new numbers orders them the same way as the original vertices.
+	 */
+	private static final class Search {
+		private final Graph g;
+		private final int n;
+		/**
+		 * The original name of each vertex
+		 */
+		private final int[] vertex;
+		/**
+		 * Number of edges between each pair of vertices, n by n
+		 */
+		private final int[] adj;
+		/**
+		 * The bit slices of adj. Bit y of the words of plane b of vertex x is bit b of adj[x * n + y].
+		 */
+		private final long[] planes;
+		private final int nplanes;
+		private final int words;
+		/**
+		 * The members of the cell being refined against, as a bitset
+		 */
+		private final long[] member;
+		/**
+		 * The partition at each level of the search tree, and the lengths of its cells indexed by their first position
+		 */
+		private final int[][] cells;
+		private final int[][] lengths;
+		private int ncells;
+
+		/**
+		 * Cells waiting to be refined against, by first position, and where each of them is in alpha (or -1)
+		 */
+		private final int[] alpha;
+		private final int[] alphaPos;
+		private final int[] degree;
+		private final int[] pieces;
+
+		private int[] bestLabel;
+		private int[] scratch;
+		private final int[] bestCells;
+		private int[] firstLabel;
+		private final int[] firstCells;
+
+		/**
+		 * The vertex individualised at each level on the way to the current node
+		 */
+		private final int[] path;
+		private final List<int[]> automorphisms = new ArrayList<int[]>();
+		private final int[] orbit;
+		private final boolean[] singleton;
+		private final int domain;
+		/**
+		 * True if some multiplicity does not fit a packed cell, in which case labels are n by n arrays of multiplicities
+		 */
+		private final boolean wide;
+
+		Search(Graph g) {
+			this.g = g;
+			int count = 0;
+			for (int v : g.vertices()) {
+				count++;
+			}
+			n = count;
+			vertex = new int[n];
+			count = 0;
+			for (int v : g.vertices()) {
+				vertex[count++] = v;
+			}
+			Arrays.sort(vertex);
+			adj = new int[n * n];
+			int[] row = new int[g.domainSize()];
+			int max = 0;
+			for (int x = 0; x < n; x++) {
+				Arrays.fill(row, 0);
+				g.row(vertex[x], row);
+				for (int y = 0; y < n; y++) {
+					int m = row[vertex[y]];
+					adj[x * n + y] = m;
+					max = Math.max(max, m);
 				}
-				return soFar;
 			}
-		}
-		// Find the first smallest non trivial cell of partition since there
-		// must be one
-		int min = -1;
-		int size = Integer.MAX_VALUE;
-		for (int i = 0; i < partition.size(); i++) {
-			int s = partition.get(i).size();
-			if (s > 1 && s < size) {
-				min = i;
-				size = s;
+			wide = max >= AdjacencyMatrix.OVERFLOW;
+			nplanes = 32 - Integer.numberOfLeadingZeros(max);
+			words = (n + 63) >>> 6;
+			planes = new long[n * nplanes * words];
+			member = new long[words];
+			for (int x = 0; x < n; x++) {
+				for (int y = 0; y < n; y++) {
+					int m = adj[x * n + y];
+					for (int b = 0; m != 0; b++, m >>>= 1) {
+						if ((m & 1) != 0) {
+							planes[(x * nplanes + b) * words + (y >>> 6)] |= 1L << y;
+						}
+					}
+				}
 			}
+			// every level adds at least one cell
+			cells = new int[n + 1][];
+			lengths = new int[n + 1][];
+			alpha = new int[n + 1];
+			alphaPos = new int[n];
+			Arrays.fill(alphaPos, -1);
+			degree = new int[n];
+			pieces = new int[n];
+			bestCells = new int[n];
+			firstCells = new int[n];
+			path = new int[n];
+			orbit = new int[n];
+			singleton = new boolean[n];
+			domain = n;
 		}
-		Set<Integer> Wk = partition.get(min);
-
-		Triple<List<Set<Integer>>, int[], int[]> current = soFar;
-		for (int i : Wk) {
-			// DO THE splitting
-			List<Set<Integer>> newPartition = new ArrayList<Set<Integer>>();
 
-			for (int j = 0; j < min; j++) {
-				newPartition.add(partition.get(j));
+		void run() {
+			int[] c = level(0);
+			int[] l = lengths[0];
+			for (int i = 0; i < n; i++) {
+				c[i] = i;
 			}
+			l[0] = n;
+			ncells = 1;
+			refine(c, l, 0);
+			search(0);
+		}
 
-			Set<Integer> u = new TreeSet<Integer>();
-			u.add(i);
-			newPartition.add(u);
-			Set<Integer> Wk1 = new TreeSet<Integer>(Wk);
-			Wk1.remove(i);
-			newPartition.add(Wk1);
-
-			for (int j = min + 1; j < partition.size(); j++) {
-				newPartition.add(partition.get(j));
+		Label label() {
+			Label l = new Label(n, g.domainSize());
+			for (int i = 0; i < n; i++) {
+				l.set(vertex[bestCells[i]], i);
 			}
-
-			// Now you need to do the equitable refinement again
-			List<Set<Integer>> alpha = new ArrayList<Set<Integer>>();
-			alpha.add(u);
-			newPartition = equitableRefinement(g, newPartition, alpha);
-
-			// if (discrete(newPartition)) {
-			// int[] value = partitionToMatrix(newPartition, g.domainSize(), g);
-			// print(newPartition, value);
-			// } else {
-			// print(newPartition, null);
-			// }
-
-			current = searchTree(g, newPartition, current);
-
+			return l;
 		}
-		return current;
-
-	}
 
-	private static boolean greaterThan(int[] value, int[] second) {
-		for (int i = 0; i < value.length; i++) {
-			if (greaterthan(0xFFFFFFFFL & value[i], 0xFFFFFFFFL & second[i])) {
-				return true;
-			} else if (lessthan(0xFFFFFFFFL & value[i], 0xFFFFFFFFL & second[i])) {
-				return false;
+		private int[] level(int d) {
+			if (cells[d] == null) {
+				cells[d] = new int[n];
+				lengths[d] = new int[n];
 			}
+			return cells[d];
 		}
-		return false;
-	}
-
-	private static boolean greaterthan(long i, long j) {
-		return i > j;
-	}
 
-	private static boolean lessthan(long i, long j) {
-		return i < j;
-	}
-
-	private static List<Set<Integer>> equitableRefinement(Graph g, List<Set<Integer>> partition, List<Set<Integer>> alpha) {
-
-		// McKay's Algorithm
-		int m = 0, M = 0;
-
-		while (!(m > M || discrete(partition))) {
-			Set<Integer> W = alpha.get(m);
-			m = m + 1;
-			int k = 0;
-
-			while (k < partition.size()) {
-
-				// Define a new set of partitions
-				Set<Integer> Vk = partition.get(k);
-				if (Vk.size() == 1) {
-					k = k + 1;
-					continue;
+		private void search(int d) {
+			int[] c = cells[d];
+			int[] l = lengths[d];
+			if (ncells == n) {
+				leaf(c);
+				return;
+			}
+			if (bestLabel != null) {
+				Arrays.fill(singleton, false);
+				for (int p = 0; p < n; p += l[p]) {
+					singleton[p] = l[p] == 1;
 				}
-				List<Set<Integer>> X = new ArrayList<Set<Integer>>();
-				place: for (int x : Vk) {
-					if (X.isEmpty()) {
-						Set<Integer> t = new TreeSet<Integer>();
-						t.add(x);
-						X.add(t);
-					} else {
-						int deg = d(x, W, g);
-						for (int c = 0; c < X.size(); c++) {
-							Set<Integer> s = X.get(c);
-							int deg2 = d(s.iterator().next(), W, g);
-							if (deg2 == deg) {
-								s.add(x);
-								continue place;
-							} else if (deg2 > deg) {
-								Set<Integer> t = new TreeSet<Integer>();
-								t.add(x);
-								insert(c, t, X);
-								continue place;
-							}
-						}
-						Set<Integer> t = new TreeSet<Integer>();
-						t.add(x);
-						X.add(t);
-					}
+				if (compare(c, bestLabel, false) < 0) {
+					return;
+				}
+			}
+			// Find the first smallest non trivial cell of partition since
+			// there must be one
+			int min = -1;
+			int size = Integer.MAX_VALUE;
+			for (int p = 0; p < n; p += l[p]) {
+				if (l[p] > 1 && l[p] < size) {
+					min = p;
+					size = l[p];
 				}
+			}
 
-				int s = X.size();
-				if (s == 1) {
-					k = k + 1;
+			int saved = ncells;
+			int[] c1 = level(d + 1);
+			int[] l1 = lengths[d + 1];
+			for (int i = 0; i < size; i++) {
+				if (i > 0 && pruned(d, c, min, i)) {
 					continue;
 				}
-
-				// find the smallest index
-				int max = 0;
-				int size = X.get(0).size();
-				for (int i = 1; i < X.size(); i++) {
-					int temps = X.get(i).size();
-					if (temps > size) {
-						max = i;
-						size = temps;
+				path[d] = c[min + i];
+				// individualise c[min + i] by splitting it off the front of
+				// its cell
+				System.arraycopy(c, 0, c1, 0, n);
+				System.arraycopy(l, 0, l1, 0, n);
+				c1[min] = c[min + i];
+				for (int j = 0, k = min + 1; j < size; j++) {
+					if (j != i) {
+						c1[k++] = c[min + j];
 					}
 				}
+				l1[min] = 1;
+				l1[min + 1] = size - 1;
+				ncells = saved + 1;
 
-				// Replace in place one
-				for (int i = m; i <= M; i++) {
-					if (alpha.get(i) == partition.get(k)) {
-						alpha.set(i, X.get(max));
-						break;
+				refine(c1, l1, min);
+				search(d + 1);
+			}
+			ncells = saved;
+		}
+
+		/**
+		 * Relabel the graph by a discrete partition, keeping it if it is the largest so far. After the first leaf the matrix is built
+		 * in scratch, in the same form as Graph.label(), rather than allocated each time.
+		 */
+		private void leaf(int[] c) {
+			if (bestLabel == null) {
+				if (wide) {
+					bestLabel = new int[n * n];
+					matrix(c, bestLabel);
+				} else {
+					Label lab = new Label(n, g.domainSize());
+					for (int i = 0; i < n; i++) {
+						lab.set(vertex[c[i]], i);
 					}
+					bestLabel = g.label(lab);
 				}
+				firstLabel = bestLabel.clone();
+				scratch = new int[bestLabel.length];
+				System.arraycopy(c, 0, bestCells, 0, n);
+				System.arraycopy(c, 0, firstCells, 0, n);
+				return;
+			}
+			int r = compare(c, bestLabel, true);
+			if (r > 0) {
+				matrix(c, scratch);
+				int[] t = bestLabel;
+				bestLabel = scratch;
+				scratch = t == firstLabel ? new int[t.length] : t;
+				System.arraycopy(c, 0, bestCells, 0, n);
+			} else if (r == 0) {
+				automorphism(bestCells, c);
+			} else if (firstLabel != bestLabel && compare(c, firstLabel, true) == 0) {
+				automorphism(firstCells, c);
+			}
+		}
 
-				// Add all others to list
-				for (int i = 0; i < X.size(); i++) {
-					if (i != max) {
-						alpha.add(X.get(i));
+		/**
+		 * Compare the matrix of a partition against a label, one word at a time and as unsigned ints, stopping at the first word
+		 * which is not fixed
+		 *
+		 * @param c
+		 *            The partition
+		 * @param label
+		 *            The matrix to compare against
+		 * @param discrete
+		 *            True if c is discrete, otherwise singleton must say which positions hold singleton cells
+		 * @return Negative, zero or positive as the fixed words of c are less than, equal to or greater than those of label
+		 */
+		private int compare(int[] c, int[] label, boolean discrete) {
+			if (wide) {
+				return compareWide(c, label, discrete);
+			}
+			int cellSize = AdjacencyMatrix.CELL_SIZE;
+			int end = domain * domain;
+			for (int w = 0; w < label.length; w++) {
+				int word = 0;
+				int first = 32 * w / cellSize;
+				int last = Math.min((32 * w + 31) / cellSize, end - 1);
+				for (int q = first; q <= last; q++) {
+					int i = q / domain;
+					int j = q % domain;
+					if (i >= n || j >= n) {
+						continue; // always empty
+					}
+					if (!discrete && !(singleton[i] && singleton[j])) {
+						return 0;
 					}
+					int v = adj[c[i] * n + c[j]];
+					int bit = q * cellSize - 32 * w;
+					word |= bit >= 0 ? v << bit : v >>> -bit;
 				}
-
-				M = M + s - 1;// M is just the largest index of alpha
-
-				// Insert relevant entries into partition instead of Vk
-				partition.set(k, X.get(X.size() - 1));
-				for (int i = X.size() - 2; i >= 0; i--) {
-					insert(k, X.get(i), partition);
+				long a = 0xFFFFFFFFL & word;
+				long b = 0xFFFFFFFFL & label[w];
+				if (a != b) {
+					return a < b ? -1 : 1;
 				}
-
-				k = k + X.size();
 			}
-
+			return 0;
 		}
-		return partition;
-	}
 
-	private static boolean discrete(List<Set<Integer>> partition) {
-		for (Set<Integer> s : partition) {
-			if (s.size() != 1) {
-				return false;
+		/**
+		 * Compare a wide matrix one cell at a time, stopping at the first cell which is not fixed
+		 */
+		private int compareWide(int[] c, int[] label, boolean discrete) {
+			for (int i = 0; i < n; i++) {
+				int row = c[i] * n;
+				for (int j = 0; j < n; j++) {
+					if (!discrete && !(singleton[i] && singleton[j])) {
+						return 0;
+					}
+					int v = adj[row + c[j]];
+					int b = label[i * n + j];
+					if (v != b) {
+						return v < b ? -1 : 1;
+					}
+				}
 			}
+			return 0;
 		}
-		return true;
-
-	}
 
-	private static int d(int v, Set<Integer> W, Graph g) {
-		int d = 0;
-		for (int i : W) {
-			d += g.numEdges(v, i);
+		/**
+		 * Write the matrix of a discrete partition into a label
+		 */
+		private void matrix(int[] c, int[] label) {
+			for (int i = 0; i < n; i++) {
+				int row = c[i] * n;
+				for (int j = 0; j < n; j++) {
+					if (wide) {
+						label[i * n + j] = adj[row + c[j]];
+					} else {
+						AdjacencyMatrix.setValue(i, j, adj[row + c[j]], domain, label);
+					}
+				}
+			}
 		}
 
-		return d;
-	}
-
-	private static <E> void insert(int p, E x, List<E> list) {
-		if (p == list.size()) {
-			list.add(x);
-			return;
-		}
-		for (int i = list.size() - 1; i >= p; i--) {
-			if (i == list.size() - 1) {
-				list.add(list.get(i));
-			} else {
-				list.set(i + 1, list.get(i));
+		/**
+		 * Record the automorphism taking one leaf to another with the same matrix
+		 */
+		private void automorphism(int[] from, int[] to) {
+			if (automorphisms.size() >= MAX_AUTOMORPHISMS) {
+				return;
+			}
+			int[] a = new int[n];
+			for (int i = 0; i < n; i++) {
+				a[from[i]] = to[i];
 			}
+			automorphisms.add(a);
 		}
-		list.set(p, x);
-	}
 
-	private static void print(List<Set<Integer>> p, int[] value) {
-		System.out.print("[");
-		for (int i = 0; i < p.size(); i++) {
-			Iterator<Integer> iter = p.get(i).iterator();
-			while (iter.hasNext()) {
-				int j = iter.next();
-				System.out.print(j);
-				if (iter.hasNext()) {
-					System.out.print(" ");
+		/**
+		 * Determine whether the i'th vertex of the target cell at a node is in the same orbit as one of the vertices before it, under
+		 * the automorphisms found so far which fix the path to the node
+		 *
+		 * @param d
+		 *            The depth of the node
+		 * @param c
+		 *            The partition at the node
+		 * @param min
+		 *            The first position of the target cell
+		 * @param i
+		 *            The index of the vertex within the target cell
+		 */
+		private boolean pruned(int d, int[] c, int min, int i) {
+			for (int x = 0; x < n; x++) {
+				orbit[x] = x;
+			}
+			boolean any = false;
+			next: for (int[] a : automorphisms) {
+				for (int j = 0; j < d; j++) {
+					if (a[path[j]] != path[j]) {
+						continue next;
+					}
+				}
+				any = true;
+				for (int x = 0; x < n; x++) {
+					int rx = find(x);
+					int ry = find(a[x]);
+					if (rx != ry) {
+						orbit[Math.max(rx, ry)] = Math.min(rx, ry);
+					}
 				}
 			}
-			if (i < p.size() - 1) {
-				System.out.print(" | ");
+			if (!any) {
+				return false;
+			}
+			int r = find(c[min + i]);
+			for (int j = 0; j < i; j++) {
+				if (find(c[min + j]) == r) {
+					return true;
+				}
 			}
+			return false;
 		}
-		System.out.print("] ");
 
-		if (value != null) {
-			for (int i : value) {
-				System.out.printf("%08X", i);
+		private int find(int x) {
+			while (orbit[x] != x) {
+				orbit[x] = orbit[orbit[x]];
+				x = orbit[x];
 			}
+			return x;
 		}
-		System.out.println();
 
-	}
+		/**
+		 * McKay's equitable refinement, starting from the cell at position first
+		 */
+		private void refine(int[] c, int[] l, int first) {
+			int m = 0, M = 0;
+			alpha[0] = first;
+			alphaPos[first] = 0;
+
+			while (m <= M && ncells < n) {
+				int w = alpha[m++];
+				alphaPos[w] = -1;
+				// the degrees are taken against W as it is now, even
+				// though it may be split below
+				degrees(c, w, l[w]);
+
+				for (int k = 0; k < n;) {
+					int len = l[k];
+					if (len == 1) {
+						k++;
+						continue;
+					}
+					int s = split(c, l, k, len);
+					if (s > 1) {
+						// find the first largest piece
+						int max = 0;
+						for (int i = 1; i < s; i++) {
+							if (l[pieces[i]] > l[pieces[max]]) {
+								max = i;
+							}
+						}
+						// replace the cell in alpha with the largest piece,
+						// and add all the others
+						int pos = alphaPos[k];
+						if (pos >= 0) {
+							alphaPos[k] = -1;
+							alpha[pos] = pieces[max];
+							alphaPos[pieces[max]] = pos;
+						}
+						for (int i = 0; i < s; i++) {
+							if (i != max) {
+								alpha[++M] = pieces[i];
+								alphaPos[pieces[i]] = M;
+							}
+						}
+						ncells += s - 1;
+					}
+					k += len;
+				}
+			}
+			for (; m <= M; m++) {
+				alphaPos[alpha[m]] = -1;
+			}
+		}
 
-	private static Label partitionToLabel(List<Set<Integer>> partition, int domain) {
-		Label l = new Label(partition.size(), domain);
-		for (int i = 0; i < partition.size(); i++) {
-			l.set(partition.get(i).iterator().next(), i);
+		/**
+		 * Set degree[x] to the number of edges from each vertex x into the cell of length len at w
+		 */
+		private void degrees(int[] c, int w, int len) {
+			if (len == 1) {
+				int y = c[w];
+				for (int x = 0; x < n; x++) {
+					degree[x] = adj[x * n + y];
+				}
+				return;
+			}
+			Arrays.fill(member, 0);
+			for (int j = w; j < w + len; j++) {
+				member[c[j] >>> 6] |= 1L << c[j];
+			}
+			for (int x = 0; x < n; x++) {
+				int d = 0;
+				int base = x * nplanes * words;
+				for (int b = 0; b < nplanes; b++) {
+					int count = 0;
+					for (int k = 0; k < words; k++) {
+						count += Long.bitCount(planes[base + k] & member[k]);
+					}
+					d += count << b;
+					base += words;
+				}
+				degree[x] = d;
+			}
 		}
-		return l;
-	}
 
-	private static int[] partitionToMatrix(List<Set<Integer>> partition, int domain, Graph g) {
-		Label l = new Label(partition.size(), domain);
-		for (int i = 0; i < partition.size(); i++) {
-			l.set(partition.get(i).iterator().next(), i);
+		/**
+		 * Sort the cell at k by degree and split it into runs of equal degree, recording the first position of each in pieces
+		 *
+		 * @return The number of pieces
+		 */
+		private int split(int[] c, int[] l, int k, int len) {
+			int end = k + len;
+			// insertion sort on (degree, vertex), cells are small
+			for (int i = k + 1; i < end; i++) {
+				int v = c[i];
+				int dv = degree[v];
+				int j = i - 1;
+				while (j >= k && (degree[c[j]] > dv || (degree[c[j]] == dv && c[j] > v))) {
+					c[j + 1] = c[j];
+					j--;
+				}
+				c[j + 1] = v;
+			}
+			int s = 0;
+			int start = k;
+			for (int i = k + 1; i <= end; i++) {
+				if (i == end || degree[c[i]] != degree[c[start]]) {
+					pieces[s++] = start;
+					l[start] = i - start;
+					start = i;
+				}
+			}
+			return s;
 		}
-		return g.label(l);
 	}
 
+	/**
+	 * Check canonical labelling on random graphs: shuffled copies of a graph must be equal, and the labels must be the same as those
+	 * of SetIsomorphism. The time taken by each is reported.
+	 *
+	 * @param args
+	 *            Optionally the number of graphs to try
+	 */
 	public static void main(String args[]) {
-		long start = System.currentTimeMillis();
+		int graphs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
 		long time = 0;
-		long count = 0;
+		long reference = 0;
+		Random r = new Random();
 
-		while (true) {
-			Random r = new Random();
+		for (int n = 0; n < graphs; n++) {
 			long seed = r.nextLong();
-			// System.out.println("seed: " + seed);
-
 			r.setSeed(seed);
 
 			int numEdges = r.nextInt(30) + 5;
@@ -337,11 +593,6 @@ public class Isomorphism {
 			}
 
 			for (int i = 0; i < 10; i++) {
-
-				if (System.currentTimeMillis() - start > 4 * 60000) {
-					System.out.println(time / (double) count);
-					return;
-				}
 				Graph g2 = new Graph(numVertices);
 
 				// Shuffle
@@ -360,9 +611,21 @@ public class Isomorphism {
 					g2.addEdge(shuffle.get(e.first()), shuffle.get(e.second()));
 				}
 
-				long start1 = System.currentTimeMillis();
-				if (!g.equals(g2) || !g2.equals(g) || g.hashCode() != g2.hashCode()) {
+				long start = System.nanoTime();
+				int[] label = canonicalLabel(g2);
+				Label l = canonicalLabelling(g2);
+				time += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				int[] label2 = SetIsomorphism.canonicalLabel(g2);
+				Label l2 = SetIsomorphism.canonicalLabelling(g2);
+				reference += System.nanoTime() - start;
+
+				// the labellings may differ where the graph has automorphisms
+				boolean same = Arrays.equals(label, label2) && Arrays.equals(g2.label(l), g2.label(l2));
+				if (!same || !g.equals(g2) || !g2.equals(g) || g.hashCode() != g2.hashCode()) {
 					System.out.println("FAIL");
+					System.out.println("Labels Differ: " + !same);
 					System.out.println("Equality Failed: " + (!g.equals(g2) || !g2.equals(g)));
 					System.out.println("Hashcode Failed: " + (g.hashCode() != g2.hashCode()));
 					System.out.println("Seed: " + seed + "L");
@@ -372,18 +635,9 @@ public class Isomorphism {
 					System.out.println(g);
 					return;
 				}
-				long end = System.currentTimeMillis();
-				time += end - start1;
-				count++;
 			}
 		}
-		// Label l = canonicalLabel(g);
-		// long end = System.currentTimeMillis();
-		// System.out.printf("%.2fs\n", (end - start) / 1000.0);
-
-		// System.out.println();
-		// for (int i = 0; i < g.numVertices(); i++) {
-		// System.out.println(i + " -> " + l.newName(i));
-		// }
+		System.out.printf("Isomorphism: %.2fms\n", time / 1e6);
+		System.out.printf("SetIsomorphism: %.2fms\n", reference / 1e6);
 	}
 }
@@ -0,0 +1,21 @@
+package util;
+
+/**
+ * Evicts the least frequently used entries first. Entries with the same number of hits go in least recently used order.
+ */
+public class LFUPolicy implements EvictionPolicy {
+
+	@Override
+	public void accessed(Cache.Entry e) {
+	}
+
+	@Override
+	public double priority(Cache.Entry e) {
+		// lastAccess is a tick count, so this fraction is always < 1
+		return e.hits() + e.lastAccess() / (e.lastAccess() + 1.0);
+	}
+
+	@Override
+	public void evicted(Cache.Entry e) {
+	}
+}
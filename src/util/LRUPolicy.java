@@ -0,0 +1,20 @@
+package util;
+
+/**
+ * Evicts the least recently used entries first
+ */
+public class LRUPolicy implements EvictionPolicy {
+
+	@Override
+	public void accessed(Cache.Entry e) {
+	}
+
+	@Override
+	public double priority(Cache.Entry e) {
+		return e.lastAccess();
+	}
+
+	@Override
+	public void evicted(Cache.Entry e) {
+	}
+}
@@ -0,0 +1,341 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import polynomial.FactorPoly;
+import polynomial.PackedPoly;
+import polynomial.XYTerm;
+
+/**
+ * An off-heap CacheTier held in a memory mapped file, so entries evicted from the Cache can still be hit without being recomputed and
+ * without taking up heap.
+ * 
+ * The file starts with an open addressing index of fixed size slots, each holding the hash of a key and the location of its record,
+ * followed by the records themselves appended in fixed size chunks (a record never spans two chunks). A record is the number of key
+ * words, the number of value bytes, the key words and the value bytes. The chunks are reused as a ring: once the index is too
+ * full, or there is no free chunk left, the oldest chunk is dropped by clearing the index slots that point into it and moving the
+ * entries after each one back so that probing still finds them.
+ */
+public class MappedCacheTier implements CacheTier {
+	private static final int SLOT_SIZE = 16;
+	private static final double MAX_LOAD = 0.7;
+	private static final int MAX_CHUNK = 64 * 1024 * 1024;
+	/**
+	 * Least number of chunks the capacity is split into, so that dropping the oldest keeps most of the tier
+	 */
+	private static final int MIN_CHUNKS = 16;
+	/**
+	 * Rough size of a record, used to size the index
+	 */
+	private static final int AVERAGE_RECORD = 256;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer index;
+	private final int slots;
+	private final int chunkSize;
+	private final int maxChunks;
+	private final List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private int entries = 0;
+	/**
+	 * The chunks from oldest round to chunk hold the records, with the next record going at offset in chunk
+	 */
+	private int oldest = 0;
+	private int chunk = 0;
+	private int offset = 0;
+	private long dropped = 0;
+
+	/**
+	 * Create a tier backed by a temporary file, which is deleted on exit
+	 * 
+	 * @param capacity
+	 *            Number of bytes of records to hold
+	 * @throws IOException
+	 */
+	public MappedCacheTier(long capacity) throws IOException {
+		this(tempFile(), capacity);
+	}
+
+	/**
+	 * @param f
+	 *            The backing file, whose contents are overwritten
+	 * @param capacity
+	 *            Number of bytes of records to hold
+	 * @throws IOException
+	 */
+	public MappedCacheTier(File f, long capacity) throws IOException {
+		int n = 1024;
+		while (n < capacity / AVERAGE_RECORD / MAX_LOAD && n < (1 << 26)) {
+			n <<= 1;
+		}
+		slots = n;
+		chunkSize = (int) Math.min(MAX_CHUNK, Math.max(capacity / MIN_CHUNKS, 1024));
+		maxChunks = (int) Math.max(1, capacity / chunkSize);
+
+		file = new RandomAccessFile(f, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		index = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) slots * SLOT_SIZE);
+	}
+
+	private static File tempFile() throws IOException {
+		File f = File.createTempFile("tutte", ".cache");
+		f.deleteOnExit();
+		return f;
+	}
+
+	@Override
+	public PackedPoly get(GraphKey key) {
+		long[] words = key.words();
+		int hash = key.hashCode();
+		lock.readLock().lock();
+		try {
+			for (int s = slot(hash);; s = (s + 1) & (slots - 1)) {
+				long loc = index.getLong(s * SLOT_SIZE);
+				if (loc == 0) {
+					return null;
+				}
+				if (index.getInt(s * SLOT_SIZE + 8) != hash) {
+					continue;
+				}
+				MappedByteBuffer c = chunks.get((int) ((loc - 1) >>> 32));
+				int pos = (int) (loc - 1);
+				if (!matches(c, pos, words)) {
+					continue;
+				}
+				byte[] value = new byte[c.getInt(pos + 4)];
+				pos += 8 + 8 * words.length;
+				for (int i = 0; i < value.length; i++) {
+					value[i] = c.get(pos + i);
+				}
+				return new PackedPoly(value);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private static boolean matches(MappedByteBuffer c, int pos, long[] words) {
+		if (c.getInt(pos) != words.length) {
+			return false;
+		}
+		pos += 8;
+		for (int i = 0; i < words.length; i++) {
+			if (c.getLong(pos + 8 * i) != words[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void put(GraphKey key, PackedPoly value) {
+		long[] words = key.words();
+		byte[] bytes = value.bytes();
+		int size = 8 + 8 * words.length + bytes.length;
+		if (size > chunkSize) {
+			return; // will never fit
+		}
+		int hash = key.hashCode();
+		lock.writeLock().lock();
+		try {
+			// give up if the key is already here, before anything is dropped to make room for it
+			int s = slot(hash);
+			for (;; s = (s + 1) & (slots - 1)) {
+				long loc = index.getLong(s * SLOT_SIZE);
+				if (loc == 0) {
+					break;
+				}
+				if (index.getInt(s * SLOT_SIZE + 8) == hash
+						&& matches(chunks.get((int) ((loc - 1) >>> 32)), (int) (loc - 1), words)) {
+					return;
+				}
+			}
+			boolean moved = false;
+			while (entries >= slots * MAX_LOAD) {
+				dropOldest();
+				moved = true;
+			}
+			if (offset + size > chunkSize) {
+				int next = (chunk + 1) % maxChunks;
+				if (next == oldest) {
+					dropOldest();
+				}
+				chunk = next;
+				offset = 0;
+				moved = true;
+			}
+			if (moved) {
+				// dropping entries may have moved the free slot back
+				for (s = slot(hash); index.getLong(s * SLOT_SIZE) != 0; s = (s + 1) & (slots - 1)) {
+				}
+			}
+
+			MappedByteBuffer c = chunk(chunk);
+			int pos = offset;
+			c.putInt(pos, words.length);
+			c.putInt(pos + 4, bytes.length);
+			for (int i = 0; i < words.length; i++) {
+				c.putLong(pos + 8 + 8 * i, words[i]);
+			}
+			int vpos = pos + 8 + 8 * words.length;
+			for (int i = 0; i < bytes.length; i++) {
+				c.put(vpos + i, bytes[i]);
+			}
+			offset += size;
+
+			index.putInt(s * SLOT_SIZE + 8, hash);
+			index.putLong(s * SLOT_SIZE, (((long) chunk << 32) | pos) + 1);
+			entries++;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private MappedByteBuffer chunk(int i) throws IOException {
+		while (chunks.size() <= i) {
+			long start = (long) slots * SLOT_SIZE + (long) chunks.size() * chunkSize;
+			chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, start, chunkSize));
+		}
+		return chunks.get(i);
+	}
+
+	/**
+	 * Drop every entry whose record is in the oldest chunk, which is then free to be overwritten. If that is the chunk being
+	 * filled, it starts again from the beginning.
+	 */
+	private void dropOldest() {
+		for (int i = 0; i < slots; i++) {
+			long loc;
+			while ((loc = index.getLong(i * SLOT_SIZE)) != 0 && (int) ((loc - 1) >>> 32) == oldest) {
+				remove(i);
+			}
+		}
+		if (oldest == chunk) {
+			offset = 0;
+		} else {
+			oldest = (oldest + 1) % maxChunks;
+		}
+		dropped++;
+	}
+
+	/**
+	 * Clear an index slot. Each later entry in the same probe run whose home slot does not lie between the hole and itself is moved
+	 * back into the hole, leaving a new hole where it was, so that no probe stops short of an entry.
+	 * 
+	 * @param hole
+	 *            The slot to clear
+	 */
+	private void remove(int hole) {
+		for (int j = (hole + 1) & (slots - 1);; j = (j + 1) & (slots - 1)) {
+			long loc = index.getLong(j * SLOT_SIZE);
+			if (loc == 0) {
+				break;
+			}
+			int hash = index.getInt(j * SLOT_SIZE + 8);
+			int home = slot(hash);
+			boolean reachable = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+			if (!reachable) {
+				index.putInt(hole * SLOT_SIZE + 8, hash);
+				index.putLong(hole * SLOT_SIZE, loc);
+				hole = j;
+			}
+		}
+		index.putLong(hole * SLOT_SIZE, 0);
+		entries--;
+	}
+
+	private int slot(int hash) {
+		hash ^= (hash >>> 16);
+		hash *= 0x85EBCA6B;
+		hash ^= (hash >>> 13);
+		return hash & (slots - 1);
+	}
+
+	@Override
+	public String statistics() {
+		lock.readLock().lock();
+		try {
+			return String.format("%d Spilled Entries\n%d Spill Chunks Dropped", entries, dropped);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			channel.close();
+			file.close();
+		} catch (IOException e) {
+			// nothing useful to do
+		}
+	}
+
+	/**
+	 * Fill a small tier many times over, checking that what survives is exactly the most recently put entries
+	 */
+	public static void main(String args[]) throws IOException {
+		MappedCacheTier t = new MappedCacheTier(64 * 1024);
+		int n = 5000;
+		for (int i = 0; i < n; i++) {
+			t.put(key(i), value(i));
+			if (t.get(key(i)) == null) {
+				throw new RuntimeException("Entry " + i + " missing straight after put");
+			}
+			// putting it again changes nothing
+			int before = t.entries;
+			t.put(key(i), value(i));
+			if (t.entries != before) {
+				throw new RuntimeException("Entry " + i + " stored twice");
+			}
+		}
+		int first = n;
+		for (int i = 0; i < n; i++) {
+			PackedPoly p = t.get(key(i));
+			if (p != null) {
+				if (first == n) {
+					first = i;
+				}
+				if (!p.unpack().toString().equals(value(i).unpack().toString())) {
+					throw new RuntimeException("Entry " + i + " is " + p.unpack());
+				}
+			} else if (first < n) {
+				throw new RuntimeException("Entry " + i + " missing, though entry " + first + " is present");
+			}
+		}
+		if (n - first != t.entries || t.entries < t.slots * MAX_LOAD / 2) {
+			throw new RuntimeException("Only " + (n - first) + " of " + t.entries + " entries found");
+		}
+		System.out.println((n - first) + " most recent entries found\n" + t.statistics());
+		t.close();
+	}
+
+	private static GraphKey key(int i) {
+		long[] words = new long[1 + i % 3];
+		for (int j = 0; j < words.length; j++) {
+			words[j] = i * 1000003L + j;
+		}
+		return new GraphKey(words);
+	}
+
+	private static PackedPoly value(int i) {
+		FactorPoly p = new FactorPoly(new XYTerm(i % 5, i % 3));
+		p.add(new XYTerm(0, 1, 1 + i % 7));
+		p.times(BigInteger.valueOf(i + 1));
+		return new PackedPoly(p);
+	}
+}
@@ -0,0 +1,322 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import polynomial.FactorPoly;
+import polynomial.PackedPoly;
+import polynomial.XYTerm;
+
+/**
+ * A CacheTier kept in a file, so that polynomials computed by one run are cache hits in the next.
+ *
+ * The file is a header (magic number and format version) followed by an append-only log of records, each being the number of key
+ * words, the number of value bytes, a CRC32 of the words and bytes, then the key words and the value bytes. The index mapping keys
+ * to record offsets is only held in memory, and is rebuilt by scanning the log the first time the tier is used. A record which is
+ * cut short or fails its checksum (say after a crash) ends the log there, and the file is truncated back to the last good record.
+ * A file with the wrong header is started afresh.
+ */
+public class PersistentCacheTier implements CacheTier {
+	private static final int MAGIC = 0x54555454; // "TUTT"
+	/**
+	 * Must change whenever GraphKey or PackedPoly change their layout, or the canonical labelling changes
+	 */
+	public static final int VERSION = 2;
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER = 12;
+
+	private final File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private final ConcurrentHashMap<GraphKey, Long> index = new ConcurrentHashMap<GraphKey, Long>();
+	private volatile boolean loaded = false;
+	private long end;
+	private int loadedEntries = 0;
+	private int written = 0;
+	private volatile boolean closed = false;
+
+	/**
+	 * Open (or create) a store. Nothing is read until the store is first used.
+	 *
+	 * @param file
+	 *            The store
+	 */
+	public PersistentCacheTier(File file) {
+		this.file = file;
+	}
+
+	@Override
+	public PackedPoly get(GraphKey key) {
+		load();
+		Long off = index.get(key);
+		if (off == null || closed) {
+			return null;
+		}
+		try {
+			long[] words = key.words();
+			ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER);
+			readFully(head, off);
+			int nbytes = head.getInt(4);
+			ByteBuffer value = ByteBuffer.allocate(nbytes);
+			readFully(value, off + RECORD_HEADER + 8L * words.length);
+			return new PackedPoly(value.array());
+		} catch (ClosedChannelException e) {
+			// close() may run at any time from the shutdown hook, after
+			// which everything is a miss
+			if (closed) {
+				return null;
+			}
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void put(GraphKey key, PackedPoly value) {
+		load();
+		if (index.containsKey(key)) {
+			return;
+		}
+		long[] words = key.words();
+		byte[] bytes = value.bytes();
+		ByteBuffer rec = ByteBuffer.allocate(RECORD_HEADER + 8 * words.length + bytes.length);
+		rec.putInt(words.length);
+		rec.putInt(bytes.length);
+		rec.putInt(0);
+		for (long w : words) {
+			rec.putLong(w);
+		}
+		rec.put(bytes);
+		rec.putInt(8, checksum(rec.array(), RECORD_HEADER, rec.capacity() - RECORD_HEADER));
+		rec.flip();
+		synchronized (this) {
+			if (closed || index.containsKey(key)) {
+				return;
+			}
+			try {
+				long off = end;
+				while (rec.hasRemaining()) {
+					channel.write(rec, off + rec.position());
+				}
+				end += rec.capacity();
+				index.put(key, off);
+				written++;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Build the index from the log, if that hasn't been done yet
+	 */
+	private void load() {
+		if (loaded) {
+			return;
+		}
+		synchronized (this) {
+			if (loaded || closed) {
+				return;
+			}
+			try {
+				raf = new RandomAccessFile(file, "rw");
+				channel = raf.getChannel();
+				end = scan();
+				if (end < 0) {
+					if (raf.length() > 0) {
+						System.err.println("Ignoring " + file + ", it is not a version " + VERSION + " cache");
+					}
+					raf.setLength(0);
+					raf.writeInt(MAGIC);
+					raf.writeInt(VERSION);
+					end = HEADER_SIZE;
+				} else if (end < raf.length()) {
+					raf.setLength(end);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			loaded = true;
+		}
+	}
+
+	/**
+	 * Read through the log, filling the index
+	 *
+	 * @return The end of the last good record, or -1 if the header is missing or wrong
+	 */
+	private long scan() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					return -1;
+				}
+			} catch (EOFException e) {
+				return -1;
+			}
+			long pos = HEADER_SIZE;
+			while (true) {
+				try {
+					int nwords = in.readInt();
+					int nbytes = in.readInt();
+					int crc = in.readInt();
+					if (nwords <= 0 || nbytes < 0 || pos + RECORD_HEADER + 8L * nwords + nbytes > raf.length()) {
+						return pos;
+					}
+					byte[] body = new byte[8 * nwords + nbytes];
+					in.readFully(body);
+					if (checksum(body, 0, body.length) != crc) {
+						return pos;
+					}
+					long[] words = new long[nwords];
+					ByteBuffer b = ByteBuffer.wrap(body);
+					for (int i = 0; i < nwords; i++) {
+						words[i] = b.getLong();
+					}
+					index.put(new GraphKey(words), pos);
+					loadedEntries++;
+					pos += RECORD_HEADER + body.length;
+				} catch (EOFException e) {
+					return pos;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void readFully(ByteBuffer b, long off) throws IOException {
+		while (b.hasRemaining()) {
+			if (channel.read(b, off + b.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private static int checksum(byte[] bs, int off, int len) {
+		CRC32 crc = new CRC32();
+		crc.update(bs, off, len);
+		return (int) crc.getValue();
+	}
+
+	@Override
+	public synchronized String statistics() {
+		return String.format("%d Stored Entries Loaded\n%d Stored Entries Written", loadedEntries, written);
+	}
+
+	/**
+	 * Flush the log to disk. It is safe to call this more than once.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed || channel == null) {
+			closed = true;
+			return;
+		}
+		closed = true;
+		try {
+			channel.force(true);
+			raf.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write a store, damage it in each of the ways a crash or an old version could, and check what survives reopening it
+	 */
+	public static void main(String args[]) throws IOException {
+		File f = File.createTempFile("tier", ".db");
+		f.deleteOnExit();
+		int n = 200;
+		PersistentCacheTier t = new PersistentCacheTier(f);
+		long[] offsets = new long[n + 1];
+		for (int i = 0; i < n; i++) {
+			t.put(key(i), value(i));
+			offsets[i] = t.index.get(key(i));
+		}
+		offsets[n] = t.end;
+		t.close();
+		check(f, n, n, "intact");
+
+		// a record cut short, as by a crash part way through writing it
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.setLength(offsets[n] - 3);
+		raf.close();
+		check(f, n, n - 1, "cut short");
+		if (f.length() != offsets[n - 1]) {
+			throw new RuntimeException("Not truncated back to the last good record: " + f.length());
+		}
+
+		// appending after recovery
+		t = new PersistentCacheTier(f);
+		t.put(key(n - 1), value(n - 1));
+		t.close();
+		check(f, n, n, "appended after recovery");
+
+		// a flipped byte in a checksum ends the log at that record
+		raf = new RandomAccessFile(f, "rw");
+		raf.seek(offsets[150] + 8);
+		int b = raf.read();
+		raf.seek(offsets[150] + 8);
+		raf.write(b ^ 0xff);
+		raf.close();
+		check(f, n, 150, "bad checksum");
+
+		// a store from another version is started afresh
+		raf = new RandomAccessFile(f, "rw");
+		raf.seek(4);
+		raf.writeInt(VERSION + 1);
+		raf.close();
+		check(f, n, 0, "wrong version");
+		if (f.length() != HEADER_SIZE) {
+			throw new RuntimeException("Store of the wrong version not reset: " + f.length());
+		}
+		System.out.println("Store recovered in every case");
+	}
+
+	/**
+	 * Reopen a store and check that exactly the first few of its entries are found, with the right values
+	 */
+	private static void check(File f, int n, int expected, String what) {
+		PersistentCacheTier t = new PersistentCacheTier(f);
+		for (int i = 0; i < n; i++) {
+			PackedPoly p = t.get(key(i));
+			if ((p != null) != (i < expected)) {
+				throw new RuntimeException(what + ": entry " + i + (p == null ? " missing" : " present"));
+			}
+			if (p != null && !p.unpack().toString().equals(value(i).unpack().toString())) {
+				throw new RuntimeException(what + ": entry " + i + " is " + p.unpack());
+			}
+		}
+		t.close();
+	}
+
+	private static GraphKey key(int i) {
+		long[] words = new long[1 + i % 3];
+		for (int j = 0; j < words.length; j++) {
+			words[j] = i * 1000003L + j;
+		}
+		return new GraphKey(words);
+	}
+
+	private static PackedPoly value(int i) {
+		FactorPoly p = new FactorPoly(new XYTerm(i % 5, i % 3));
+		p.add(new XYTerm(0, 1, 1 + i % 7));
+		p.times(BigInteger.valueOf(i + 1));
+		return new PackedPoly(p);
+	}
+}
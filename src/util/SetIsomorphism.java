@@ -0,0 +1,326 @@
+package util;
+
+import graph.Graph;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The original canonical labelling, with partitions held as lists of sets. It is kept as the reference that Isomorphism is checked and
+ * benchmarked against, and is not used otherwise.
+ * 
+ * @author roma
+ * 
+ */
+class SetIsomorphism {
+
+	static int[] canonicalLabel(Graph g) {
+		return search(g).third;
+	}
+
+	/**
+	 * Find the canonical labelling of a graph. Isomorphic graphs relabelled by their canonical labellings are identical.
+	 * 
+	 * @param g
+	 *            The graph to label
+	 * @return Mapping from the vertices of g to 0..numVertices-1
+	 */
+	static Label canonicalLabelling(Graph g) {
+		return partitionToLabel(search(g).first, g.domainSize());
+	}
+
+	private static Triple<List<Set<Integer>>, int[], int[]> search(Graph g) {
+
+		// Create an initial partition
+		Set<Integer> cell = new TreeSet<Integer>();
+		for (int i : g.vertices()) {
+			cell.add(i);
+		}
+		List<Set<Integer>> unitpart = new ArrayList<Set<Integer>>();
+		List<Set<Integer>> alpha = new ArrayList<Set<Integer>>();
+		unitpart.add(cell);
+		alpha.add(cell);
+
+		Triple<List<Set<Integer>>, int[], int[]> resultTriple = null;
+		List<Set<Integer>> partition = null;
+		try {
+			partition = equitableRefinement(g, unitpart, alpha);
+			// print(partition, null);
+
+			resultTriple = searchTree(g, partition, null);
+		} catch (Error e) {
+			System.out.println(g.numEdges());
+			System.out.println(partition);
+			System.out.println(resultTriple);
+			throw e;
+		}
+		// System.out.println();
+		// print(resultTriple.first, resultTriple.second);
+		return resultTriple;
+	}
+
+	/**
+	 * Triple<Partition, value, edges>
+	 * 
+	 * @param g
+	 * @param partition
+	 * @param soFar
+	 * @return
+	 */
+	private static Triple<List<Set<Integer>>, int[], int[]> searchTree(Graph g, List<Set<Integer>> partition,
+			Triple<List<Set<Integer>>, int[], int[]> soFar) {
+		if (discrete(partition)) {
+			int[] label = partitionToMatrix(partition, g.domainSize(), g);
+			// int[] label = partitionToLabel(partition, g.domainSize());
+			if (soFar == null) {
+				return new Triple<List<Set<Integer>>, int[], int[]>(partition, label, label);
+			} else {
+				// int[] value = partitionToValue(partition, g, label);
+				if (greaterThan(label, soFar.second)) {
+					return new Triple<List<Set<Integer>>, int[], int[]>(partition, label, label);
+				}
+				return soFar;
+			}
+		}
+		// Find the first smallest non trivial cell of partition since there
+		// must be one
+		int min = -1;
+		int size = Integer.MAX_VALUE;
+		for (int i = 0; i < partition.size(); i++) {
+			int s = partition.get(i).size();
+			if (s > 1 && s < size) {
+				min = i;
+				size = s;
+			}
+		}
+		Set<Integer> Wk = partition.get(min);
+
+		Triple<List<Set<Integer>>, int[], int[]> current = soFar;
+		for (int i : Wk) {
+			// DO THE splitting
+			List<Set<Integer>> newPartition = new ArrayList<Set<Integer>>();
+
+			for (int j = 0; j < min; j++) {
+				newPartition.add(partition.get(j));
+			}
+
+			Set<Integer> u = new TreeSet<Integer>();
+			u.add(i);
+			newPartition.add(u);
+			Set<Integer> Wk1 = new TreeSet<Integer>(Wk);
+			Wk1.remove(i);
+			newPartition.add(Wk1);
+
+			for (int j = min + 1; j < partition.size(); j++) {
+				newPartition.add(partition.get(j));
+			}
+
+			// Now you need to do the equitable refinement again
+			List<Set<Integer>> alpha = new ArrayList<Set<Integer>>();
+			alpha.add(u);
+			newPartition = equitableRefinement(g, newPartition, alpha);
+
+			// if (discrete(newPartition)) {
+			// int[] value = partitionToMatrix(newPartition, g.domainSize(), g);
+			// print(newPartition, value);
+			// } else {
+			// print(newPartition, null);
+			// }
+
+			current = searchTree(g, newPartition, current);
+
+		}
+		return current;
+
+	}
+
+	private static boolean greaterThan(int[] value, int[] second) {
+		for (int i = 0; i < value.length; i++) {
+			if (greaterthan(0xFFFFFFFFL & value[i], 0xFFFFFFFFL & second[i])) {
+				return true;
+			} else if (lessthan(0xFFFFFFFFL & value[i], 0xFFFFFFFFL & second[i])) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private static boolean greaterthan(long i, long j) {
+		return i > j;
+	}
+
+	private static boolean lessthan(long i, long j) {
+		return i < j;
+	}
+
+	private static List<Set<Integer>> equitableRefinement(Graph g, List<Set<Integer>> partition, List<Set<Integer>> alpha) {
+
+		// McKay's Algorithm
+		int m = 0, M = 0;
+
+		while (!(m > M || discrete(partition))) {
+			Set<Integer> W = alpha.get(m);
+			m = m + 1;
+			int k = 0;
+
+			while (k < partition.size()) {
+
+				// Define a new set of partitions
+				Set<Integer> Vk = partition.get(k);
+				if (Vk.size() == 1) {
+					k = k + 1;
+					continue;
+				}
+				List<Set<Integer>> X = new ArrayList<Set<Integer>>();
+				place: for (int x : Vk) {
+					if (X.isEmpty()) {
+						Set<Integer> t = new TreeSet<Integer>();
+						t.add(x);
+						X.add(t);
+					} else {
+						int deg = d(x, W, g);
+						for (int c = 0; c < X.size(); c++) {
+							Set<Integer> s = X.get(c);
+							int deg2 = d(s.iterator().next(), W, g);
+							if (deg2 == deg) {
+								s.add(x);
+								continue place;
+							} else if (deg2 > deg) {
+								Set<Integer> t = new TreeSet<Integer>();
+								t.add(x);
+								insert(c, t, X);
+								continue place;
+							}
+						}
+						Set<Integer> t = new TreeSet<Integer>();
+						t.add(x);
+						X.add(t);
+					}
+				}
+
+				int s = X.size();
+				if (s == 1) {
+					k = k + 1;
+					continue;
+				}
+
+				// find the smallest index
+				int max = 0;
+				int size = X.get(0).size();
+				for (int i = 1; i < X.size(); i++) {
+					int temps = X.get(i).size();
+					if (temps > size) {
+						max = i;
+						size = temps;
+					}
+				}
+
+				// Replace in place one
+				for (int i = m; i <= M; i++) {
+					if (alpha.get(i) == partition.get(k)) {
+						alpha.set(i, X.get(max));
+						break;
+					}
+				}
+
+				// Add all others to list
+				for (int i = 0; i < X.size(); i++) {
+					if (i != max) {
+						alpha.add(X.get(i));
+					}
+				}
+
+				M = M + s - 1;// M is just the largest index of alpha
+
+				// Insert relevant entries into partition instead of Vk
+				partition.set(k, X.get(X.size() - 1));
+				for (int i = X.size() - 2; i >= 0; i--) {
+					insert(k, X.get(i), partition);
+				}
+
+				k = k + X.size();
+			}
+
+		}
+		return partition;
+	}
+
+	private static boolean discrete(List<Set<Integer>> partition) {
+		for (Set<Integer> s : partition) {
+			if (s.size() != 1) {
+				return false;
+			}
+		}
+		return true;
+
+	}
+
+	private static int d(int v, Set<Integer> W, Graph g) {
+		int d = 0;
+		for (int i : W) {
+			d += g.numEdges(v, i);
+		}
+
+		return d;
+	}
+
+	private static <E> void insert(int p, E x, List<E> list) {
+		if (p == list.size()) {
+			list.add(x);
+			return;
+		}
+		for (int i = list.size() - 1; i >= p; i--) {
+			if (i == list.size() - 1) {
+				list.add(list.get(i));
+			} else {
+				list.set(i + 1, list.get(i));
+			}
+		}
+		list.set(p, x);
+	}
+
+	private static void print(List<Set<Integer>> p, int[] value) {
+		System.out.print("[");
+		for (int i = 0; i < p.size(); i++) {
+			Iterator<Integer> iter = p.get(i).iterator();
+			while (iter.hasNext()) {
+				int j = iter.next();
+				System.out.print(j);
+				if (iter.hasNext()) {
+					System.out.print(" ");
+				}
+			}
+			if (i < p.size() - 1) {
+				System.out.print(" | ");
+			}
+		}
+		System.out.print("] ");
+
+		if (value != null) {
+			for (int i : value) {
+				System.out.printf("%08X", i);
+			}
+		}
+		System.out.println();
+
+	}
+
+	private static Label partitionToLabel(List<Set<Integer>> partition, int domain) {
+		Label l = new Label(partition.size(), domain);
+		for (int i = 0; i < partition.size(); i++) {
+			l.set(partition.get(i).iterator().next(), i);
+		}
+		return l;
+	}
+
+	private static int[] partitionToMatrix(List<Set<Integer>> partition, int domain, Graph g) {
+		Label l = new Label(partition.size(), domain);
+		for (int i = 0; i < partition.size(); i++) {
+			l.set(partition.get(i).iterator().next(), i);
+		}
+		return g.label(l);
+	}
+}